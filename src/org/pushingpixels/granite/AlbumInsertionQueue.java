@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite;
+
+import java.util.*;
+
+import org.eclipse.swt.events.DisposeEvent;
+import org.eclipse.swt.events.DisposeListener;
+import org.pushingpixels.granite.data.Album;
+
+/**
+ * Inserts the albums found by a search into the main content panel in slices,
+ * one slice per frame. The slice size adapts so that a slice stays within the
+ * per-frame time budget, and the event loop runs between two slices. The
+ * search thread is blocked while too many albums are waiting to be inserted.
+ * Once the panel is disposed, the queue is closed - the waiting albums are
+ * dropped, and the search thread is released.
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class AlbumInsertionQueue implements FrameScheduler.FrameTask {
+	/**
+	 * The panel that gets the albums.
+	 */
+	private MainContentPanel panel;
+
+	/**
+	 * Runs the insertion slices.
+	 */
+	private FrameScheduler frameScheduler;
+
+	/**
+	 * The maximal number of albums waiting to be inserted.
+	 */
+	private int maxPending;
+
+	/**
+	 * The time budget of a single slice.
+	 */
+	private long frameBudgetNanos;
+
+	/**
+	 * The albums waiting to be inserted, in the order they were found.
+	 */
+	private LinkedList<Album> pending;
+
+	/**
+	 * The number of albums in the next slice.
+	 */
+	private int sliceSize;
+
+	/**
+	 * Indicates whether this queue has been added to the
+	 * {@link #frameScheduler}.
+	 */
+	private boolean isScheduled;
+
+	/**
+	 * Indicates whether this queue has been closed.
+	 */
+	private boolean isClosed;
+
+	/**
+	 * Creates a new insertion queue. Must be called on the UI thread.
+	 * 
+	 * @param panel
+	 *            The panel that gets the albums.
+	 * @param frameScheduler
+	 *            Runs the insertion slices.
+	 * @param maxPending
+	 *            The maximal number of albums waiting to be inserted.
+	 * @param frameBudgetMillis
+	 *            The time budget of a single slice, in milliseconds.
+	 */
+	public AlbumInsertionQueue(MainContentPanel panel,
+			FrameScheduler frameScheduler, int maxPending,
+			int frameBudgetMillis) {
+		this.panel = panel;
+		this.frameScheduler = frameScheduler;
+		this.maxPending = maxPending;
+		this.frameBudgetNanos = frameBudgetMillis * 1000000L;
+		this.pending = new LinkedList<Album>();
+		this.sliceSize = 1;
+		this.isClosed = false;
+
+		this.panel.addDisposeListener(new DisposeListener() {
+			@Override
+			public void widgetDisposed(DisposeEvent e) {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Queues the specified album for insertion. Blocks while the queue is
+	 * full. The album is dropped if the queue has been closed. Must not be
+	 * called on the UI thread.
+	 * 
+	 * @param album
+	 *            Album to insert.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	public synchronized void offer(Album album) throws InterruptedException {
+		while (!this.isClosed && (this.pending.size() >= this.maxPending))
+			this.wait();
+		if (this.isClosed || this.panel.isDisposed())
+			return;
+		this.pending.add(album);
+		if (!this.isScheduled) {
+			this.isScheduled = true;
+			this.frameScheduler.addFrameTask(this);
+		}
+	}
+
+	/**
+	 * Waits until all the queued albums have been inserted or the queue has
+	 * been closed. Must not be called on the UI thread.
+	 * 
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	public synchronized void awaitDrained() throws InterruptedException {
+		while (!this.isClosed && !this.pending.isEmpty())
+			this.wait();
+	}
+
+	/**
+	 * Closes this queue. The waiting albums are dropped, the threads blocked
+	 * in {@link #offer(Album)} and {@link #awaitDrained()} are released, and
+	 * the albums offered later are dropped. Can be called on any thread.
+	 */
+	public void close() {
+		synchronized (this) {
+			this.isClosed = true;
+			this.pending.clear();
+			this.notifyAll();
+		}
+		// no frame runs once the display is disposed
+		this.frameScheduler.removeFrameTask(this);
+	}
+
+	@Override
+	public boolean runFrame(long frameTime) {
+		List<Album> slice;
+		synchronized (this) {
+			if (this.panel.isDisposed())
+				this.pending.clear();
+			int count = Math.min(this.sliceSize, this.pending.size());
+			slice = new ArrayList<Album>(count);
+			for (int i = 0; i < count; i++)
+				slice.add(this.pending.removeFirst());
+			// wake up the search thread
+			this.notifyAll();
+			if (slice.isEmpty()) {
+				this.isScheduled = false;
+				return false;
+			}
+		}
+
+		long start = System.nanoTime();
+		this.panel.addAlbumItems(slice);
+		long elapsed = System.nanoTime() - start;
+
+		synchronized (this) {
+			// grow the slices that finish early, and shrink the slices that
+			// run over the budget
+			if (elapsed > this.frameBudgetNanos)
+				this.sliceSize = Math.max(1, this.sliceSize / 2);
+			else if (elapsed < this.frameBudgetNanos / 2)
+				this.sliceSize = Math.min(this.maxPending, this.sliceSize * 2);
+
+			if (this.pending.isEmpty()) {
+				this.isScheduled = false;
+				return false;
+			}
+			return true;
+		}
+	}
+}
@@ -29,16 +29,21 @@
  */
 package org.pushingpixels.granite;
 
-import org.eclipse.core.runtime.*;
+import java.util.concurrent.Future;
+
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.*;
 import org.eclipse.swt.graphics.*;
 import org.eclipse.swt.widgets.*;
+import org.pushingpixels.granite.art.AlbumArtCache;
+import org.pushingpixels.granite.art.ImageUploadQueue;
+import org.pushingpixels.granite.backend.FetchPriority;
+import org.pushingpixels.granite.backend.FlightHandle;
 import org.pushingpixels.granite.data.Album;
+import org.pushingpixels.granite.details.DetailsPrefetcher;
 import org.pushingpixels.trident.*;
 import org.pushingpixels.trident.Timeline.RepeatBehavior;
 import org.pushingpixels.trident.ease.Spline;
-import org.pushingpixels.trident.swt.SWTRepaintCallback;
 
 /**
  * Displays the overview information on the specific album.
@@ -51,6 +56,18 @@ public class AlbumOverviewComponent extends Canvas {
 	 */
 	public static final int OVERVIEW_IMAGE_DIM = 100;
 
+	/**
+	 * The album shown in this component.
+	 */
+	private Album album;
+
+	/**
+	 * Incremented every time this component is bound to another album. Is
+	 * used to drop album art that finishes loading after the album that
+	 * requested it has been replaced.
+	 */
+	private int generation;
+
 	/**
 	 * The original album art.
 	 */
@@ -90,6 +107,36 @@ public class AlbumOverviewComponent extends Canvas {
 	 */
 	private int alpha;
 
+	/**
+	 * Loads the album art of the current album.
+	 */
+	private FlightTimelineScenarioActor<ImageData> imageLoader;
+
+	/**
+	 * Loads the album art of the current album.
+	 */
+	private TimelineScenario loadScenario;
+
+	/**
+	 * The pending upload of the album art of the current album.
+	 */
+	private volatile Future<Image> imageUpload;
+
+	/**
+	 * Fades in the album art of the current album once it has been uploaded.
+	 */
+	private Timeline imageFadeInTimeline;
+
+	/**
+	 * Fades in this component when it shows a newly added album.
+	 */
+	private Timeline shownTimeline;
+
+	/**
+	 * Pulsates the border while the mouse is over this component.
+	 */
+	private Timeline rolloverTimeline;
+
 	/**
 	 * Component insets.
 	 */
@@ -106,27 +153,27 @@ public class AlbumOverviewComponent extends Canvas {
 	public static final int DEFAULT_HEIGHT = 180;
 
 	/**
-	 * Creates a new component that shows overview informartion on the specified
-	 * album.
+	 * Creates a new component that shows overview information on an album.
+	 * The component is empty until it is bound to an album with
+	 * {@link #setAlbum(Album, FetchPriority, boolean)}, and can be bound to
+	 * other albums later on.
 	 * 
 	 * @param parent
 	 *            Parent composite.
-	 * @param album
-	 *            Information on an album.
 	 */
-	public AlbumOverviewComponent(Composite parent, final Album album) {
+	public AlbumOverviewComponent(Composite parent) {
 		super(parent, SWT.DOUBLE_BUFFERED | SWT.TRANSPARENT);
-		this.caption = album.name;
-		this.releaseDate = album.releaseDate;
 		this.imageLoadedDone = false;
 		this.imageAlpha = 0.0f;
 
-		this.setCursor(new Cursor(Display.getDefault(), SWT.CURSOR_HAND));
+		final Cursor handCursor = GraphicsResources.get(this.getDisplay())
+				.getCursor(SWT.CURSOR_HAND);
+		this.setCursor(handCursor);
 		this.alpha = 0;
 
-		final Timeline rolloverTimeline = new Timeline(this);
+		this.rolloverTimeline = new Timeline(this);
 		rolloverTimeline.addPropertyToInterpolate("borderAlpha", 0.0f, 0.6f);
-		rolloverTimeline.addCallback(new SWTRepaintCallback(
+		rolloverTimeline.addCallback(new FrameRepaintCallback(
 				AlbumOverviewComponent.this));
 		rolloverTimeline.setEase(new Spline(0.7f));
 		rolloverTimeline.setDuration(800);
@@ -134,11 +181,15 @@ public class AlbumOverviewComponent extends Canvas {
 			@Override
 			public void mouseEnter(MouseEvent e) {
 				rolloverTimeline.playLoop(RepeatBehavior.REVERSE);
+				if (album != null)
+					DetailsPrefetcher.getDefault().hoverStarted(album);
 			}
 
 			@Override
 			public void mouseExit(MouseEvent e) {
 				rolloverTimeline.playReverse();
+				if (album != null)
+					DetailsPrefetcher.getDefault().hoverEnded(album);
 			}
 		});
 
@@ -150,151 +201,298 @@ public class AlbumOverviewComponent extends Canvas {
 			}
 		});
 
-		Timeline shownTimeline = new Timeline(AlbumOverviewComponent.this);
-		shownTimeline.addPropertyToInterpolate("alpha", 0, 255);
-		shownTimeline.addCallback(new SWTRepaintCallback(
+		this.shownTimeline = new Timeline(AlbumOverviewComponent.this);
+		this.shownTimeline.addPropertyToInterpolate("alpha", 0, 255);
+		this.shownTimeline.addCallback(new FrameRepaintCallback(
 				AlbumOverviewComponent.this));
-		shownTimeline.setDuration(1000);
-		shownTimeline.play();
+		this.shownTimeline.setDuration(1000);
+
+		this.addDisposeListener(new DisposeListener() {
+			@Override
+			public void widgetDisposed(DisposeEvent e) {
+				clearAlbum();
+				GraphicsResources.get(e.display).release(handCursor);
+			}
+		});
 
 		this.addPaintListener(new PaintListener() {
 			@Override
 			public void paintControl(PaintEvent e) {
-				GC gc = e.gc;
-				gc.setAlpha(alpha);
-				gc.setAntialias(SWT.ON);
-
-				Pattern pattern = new Pattern(e.display, 0, 0, 0,
-						DEFAULT_HEIGHT, e.display
-								.getSystemColor(SWT.COLOR_BLACK), 196,
-						e.display.getSystemColor(SWT.COLOR_BLACK), 0);
-				gc.setBackgroundPattern(pattern);
-				gc.setForegroundPattern(pattern);
-				gc.fillRoundRectangle(0, 0, DEFAULT_WIDTH - 1,
-						DEFAULT_HEIGHT - 1, 18, 18);
-				gc.drawRoundRectangle(0, 0, DEFAULT_WIDTH - 1,
-						DEFAULT_HEIGHT - 1, 18, 18);
-				pattern.dispose();
-
-				if (borderAlpha > 0.0f) {
-					// show the pulsating bluish outline of the rollover album
-					Color borderColor = new Color(e.display, 64, 140, 255);
-					Pattern borderPattern = new Pattern(e.display, 0, 0, 0,
-							DEFAULT_HEIGHT, borderColor,
-							(int) (196 * borderAlpha), borderColor, 0);
-					LineAttributes currLineAttr = gc.getLineAttributes();
-					gc.setLineAttributes(new LineAttributes(2.0f,
-							SWT.CAP_ROUND, SWT.JOIN_ROUND));
-					gc.setForegroundPattern(borderPattern);
-					gc.drawRoundRectangle(1, 1, DEFAULT_WIDTH - 2,
-							DEFAULT_HEIGHT - 2, 18, 18);
-					gc.setLineAttributes(currLineAttr);
-					borderPattern.dispose();
-					borderColor.dispose();
+				if (caption == null) {
+					paintOverview(AlbumOverviewComponent.this, e.gc, null,
+							null, null, alpha, 0.0f, borderAlpha);
+				} else {
+					paintOverview(AlbumOverviewComponent.this, e.gc, caption,
+							releaseDate, getImage(), alpha, imageAlpha,
+							borderAlpha);
 				}
+			}
+		});
 
-				if (imageLoadedDone) {
-					gc.setAlpha((int) (alpha * imageAlpha));
-					// draw the album art image
-					gc.drawImage(image, (getBounds().width - image
-							.getImageData().width) / 2,
-							INSETS
-									+ (OVERVIEW_IMAGE_DIM - image
-											.getImageData().height) / 2);
-					gc.setAlpha(alpha);
-				}
+	}
+
+	/**
+	 * Binds this component to the specified album. The album art that is
+	 * already in the album art cache is shown right away, otherwise it is
+	 * loaded and faded in. Must be called on the UI thread.
+	 * 
+	 * @param album
+	 *            Information on an album.
+	 * @param fetchPriority
+	 *            The priority of the album art request.
+	 * @param fadeIn
+	 *            If <code>true</code>, this component is faded in.
+	 */
+	public void setAlbum(Album album, FetchPriority fetchPriority,
+			boolean fadeIn) {
+		this.clearAlbum();
 
-				FontData fontData = gc.getDevice().getSystemFont()
-						.getFontData()[0];
-				gc.setFont(new Font(gc.getDevice(), fontData.getName(), 9,
-						SWT.NORMAL));
-
-				FontMetrics fontMetrics = gc.getFontMetrics();
-				int textY = INSETS + OVERVIEW_IMAGE_DIM
-						+ fontMetrics.getDescent();
-				int textX = INSETS;
-				int textWidth = DEFAULT_WIDTH - INSETS - textX;
-
-				gc
-						.setForeground(gc.getDevice().getSystemColor(
-								SWT.COLOR_WHITE));
-				GraniteUtils.paintMultilineText(AlbumOverviewComponent.this,
-						gc, caption, textX, textWidth, textY, 2);
-
-				gc.setForeground(new Color(gc.getDevice(), 64, 140, 255));
-				GraniteUtils.paintMultilineText(AlbumOverviewComponent.this,
-						gc, releaseDate, textX, textWidth, textY + 2
-								* fontMetrics.getHeight(), 1);
+		this.album = album;
+		this.caption = album.name;
+		this.releaseDate = album.releaseDate;
+		if (fadeIn) {
+			this.alpha = 0;
+			this.shownTimeline.replay();
+		} else {
+			this.alpha = 255;
+		}
+
+		final FlightHandle<ImageData> artHandle = AlbumArtCache.getDefault()
+				.getOverviewArtAsync(album.asin, OVERVIEW_IMAGE_DIM,
+						fetchPriority);
+		if (artHandle.isDone()) {
+			// no need to fade in the album art that has already been loaded
+			try {
+				this.image = ResourceTracker.track(new Image(this
+						.getDisplay(), artHandle.get()));
+				this.imageLoadedDone = true;
+				this.imageAlpha = 1.0f;
+			} catch (Exception exc) {
+				exc.printStackTrace();
 			}
-		});
+		} else {
+			this.loadScenario = this.getLoadImageScenario(artHandle);
+			this.loadScenario.play();
+		}
+		this.redraw();
+	}
 
-		Display.getDefault().asyncExec(new Runnable() {
-			@Override
-			public void run() {
-				getLoadImageScenario(album).play();
+	/**
+	 * Returns the album shown in this component.
+	 * 
+	 * @return The album shown in this component, or <code>null</code> if this
+	 *         component is not bound to an album.
+	 */
+	public Album getAlbum() {
+		return this.album;
+	}
+
+	/**
+	 * Unbinds this component from its album. The pending album art request is
+	 * cancelled and the album art is disposed. Must be called on the UI
+	 * thread.
+	 */
+	public void clearAlbum() {
+		if (this.loadScenario != null) {
+			this.loadScenario.cancel();
+			this.loadScenario = null;
+		}
+		if (this.imageLoader != null) {
+			this.imageLoader.cancel();
+			this.imageLoader = null;
+		}
+		if (this.imageUpload != null) {
+			this.imageUpload.cancel(false);
+			this.imageUpload = null;
+		}
+		if (this.imageFadeInTimeline != null) {
+			this.imageFadeInTimeline.abort();
+			this.imageFadeInTimeline = null;
+		}
+		synchronized (this) {
+			this.generation++;
+			if (this.image != null) {
+				ResourceTracker.dispose(this.image);
+				this.image = null;
 			}
-		});
+			this.imageLoadedDone = false;
+		}
+		this.shownTimeline.abort();
+		this.rolloverTimeline.abort();
+		this.borderAlpha = 0.0f;
+		this.imageAlpha = 0.0f;
+		if (this.album != null)
+			DetailsPrefetcher.getDefault().hoverEnded(this.album);
+		this.album = null;
+		this.caption = null;
+		this.releaseDate = null;
 	}
 
 	/**
-	 * Returns the timeline scenario that loads, scaled and fades in the
-	 * associated album art.
+	 * Paints the overview of an album at the origin of the specified graphics
+	 * context. Is shared by this component and the single-canvas album strip.
 	 * 
-	 * @param albumItem
-	 *            Album item.
-	 * @return The timeline scenario that loads, scaled and fades in the
-	 *         associated album art.
+	 * @param control
+	 *            The control that is painted.
+	 * @param gc
+	 *            Graphics context.
+	 * @param caption
+	 *            The album caption, or <code>null</code> to only paint the
+	 *            background.
+	 * @param releaseDate
+	 *            The album release date.
+	 * @param image
+	 *            The album art, or <code>null</code> if it has not been loaded.
+	 * @param alpha
+	 *            The alpha value of the overview.
+	 * @param imageAlpha
+	 *            The alpha value of the album art.
+	 * @param borderAlpha
+	 *            The alpha value of the rollover border.
+	 */
+	public static void paintOverview(Control control, GC gc, String caption,
+			String releaseDate, Image image, int alpha, float imageAlpha,
+			float borderAlpha) {
+		Device device = gc.getDevice();
+		GraphicsResources resources = GraphicsResources.get(control
+				.getDisplay());
+		gc.setAlpha(alpha);
+		gc.setAntialias(SWT.ON);
+
+		RGB black = new RGB(0, 0, 0);
+		Pattern pattern = resources.getLinearGradient(0, 0, 0, DEFAULT_HEIGHT,
+				black, 196, black, 0);
+		gc.setBackgroundPattern(pattern);
+		gc.setForegroundPattern(pattern);
+		gc.fillRoundRectangle(0, 0, DEFAULT_WIDTH - 1, DEFAULT_HEIGHT - 1, 18,
+				18);
+		gc.drawRoundRectangle(0, 0, DEFAULT_WIDTH - 1, DEFAULT_HEIGHT - 1, 18,
+				18);
+		gc.setBackgroundPattern(null);
+		gc.setForegroundPattern(null);
+		resources.release(pattern);
+
+		if (borderAlpha > 0.0f) {
+			// show the pulsating bluish outline of the rollover album. The
+			// gradient is shared by all the pulses, and the pulse itself
+			// comes from the alpha of the graphics context.
+			RGB borderRgb = new RGB(64, 140, 255);
+			Pattern borderPattern = resources.getLinearGradient(0, 0, 0,
+					DEFAULT_HEIGHT, borderRgb, 196, borderRgb, 0);
+			gc.setAlpha((int) (alpha * borderAlpha));
+			LineAttributes currLineAttr = gc.getLineAttributes();
+			gc.setLineAttributes(new LineAttributes(2.0f, SWT.CAP_ROUND,
+					SWT.JOIN_ROUND));
+			gc.setForegroundPattern(borderPattern);
+			gc.drawRoundRectangle(1, 1, DEFAULT_WIDTH - 2, DEFAULT_HEIGHT - 2,
+					18, 18);
+			gc.setForegroundPattern(null);
+			gc.setLineAttributes(currLineAttr);
+			gc.setAlpha(alpha);
+			resources.release(borderPattern);
+		}
+
+		if (caption == null)
+			return;
+
+		if (image != null) {
+			Rectangle imageBounds = image.getBounds();
+			gc.setAlpha((int) (alpha * imageAlpha));
+			// draw the album art image
+			gc.drawImage(image, (DEFAULT_WIDTH - imageBounds.width) / 2,
+					INSETS + (OVERVIEW_IMAGE_DIM - imageBounds.height) / 2);
+			gc.setAlpha(alpha);
+		}
+
+		FontData fontData = device.getSystemFont().getFontData()[0];
+		Font font = resources.getFont(fontData.getName(), 9, SWT.NORMAL);
+		gc.setFont(font);
+
+		FontMetrics fontMetrics = gc.getFontMetrics();
+		int textY = INSETS + OVERVIEW_IMAGE_DIM + fontMetrics.getDescent();
+		int textX = INSETS;
+		int textWidth = DEFAULT_WIDTH - INSETS - textX;
+
+		gc.setForeground(device.getSystemColor(SWT.COLOR_WHITE));
+		GraniteUtils.paintMultilineText(control, gc, caption, textX,
+				textWidth, textY, 2);
+
+		Color releaseDateColor = resources.getColor(64, 140, 255);
+		gc.setForeground(releaseDateColor);
+		GraniteUtils.paintMultilineText(control, gc, releaseDate, textX,
+				textWidth, textY + 2 * fontMetrics.getHeight(), 1);
+
+		gc.setFont(null);
+		resources.release(font);
+		resources.release(releaseDateColor);
+	}
+
+	private synchronized Image getImage() {
+		return this.imageLoadedDone ? this.image : null;
+	}
+
+	/**
+	 * Returns the timeline scenario that loads the album art of the current
+	 * album and queues it for upload.
+	 * 
+	 * @param artHandle
+	 *            The handle of the album art request.
+	 * @return The timeline scenario that loads the album art.
 	 */
-	private TimelineScenario getLoadImageScenario(final Album albumItem) {
+	private TimelineScenario getLoadImageScenario(
+			final FlightHandle<ImageData> artHandle) {
 		TimelineScenario loadScenario = new TimelineScenario.Sequence();
 
-		// load the image
-		EclipseJobTimelineScenarioActor imageLoadWorker = new EclipseJobTimelineScenarioActor(
-				"Load image") {
+		// wait for the image (already scaled to fit) from the shared album
+		// art cache
+		this.imageLoader = new FlightTimelineScenarioActor<ImageData>() {
 			@Override
-			protected IStatus run(IProgressMonitor monitor) {
-				try {
-					image = new Image(Display.getDefault(), BackendConnector
-							.getAlbumArt(albumItem.asin));
-					return Status.OK_STATUS;
-				} catch (Throwable t) {
-					t.printStackTrace();
-					return Status.CANCEL_STATUS;
-				}
+			protected FlightHandle<ImageData> startFlight() {
+				return artHandle;
 			}
 		};
-		loadScenario.addScenarioActor(imageLoadWorker);
+		final FlightTimelineScenarioActor<ImageData> imageLoader = this.imageLoader;
+		loadScenario.addScenarioActor(imageLoader);
 
-		// scale if necessary
-		TimelineRunnable scaler = new TimelineRunnable() {
+		// the fade-in is played once the image has been uploaded
+		final Timeline imageFadeInTimeline = new Timeline(
+				AlbumOverviewComponent.this);
+		imageFadeInTimeline.addPropertyToInterpolate("imageAlpha", 0.0f, 1.0f);
+		imageFadeInTimeline.addCallback(new FrameRepaintCallback(
+				AlbumOverviewComponent.this));
+		imageFadeInTimeline.setDuration(500);
+		this.imageFadeInTimeline = imageFadeInTimeline;
+
+		final int generation = this.generation;
+		TimelineRunnable loaded = new TimelineRunnable() {
 			@Override
 			public void run() {
-				if (image != null) {
-					float vFactor = (float) OVERVIEW_IMAGE_DIM
-							/ (float) image.getImageData().height;
-					float hFactor = (float) OVERVIEW_IMAGE_DIM
-							/ (float) image.getImageData().width;
-					float factor = Math.min(1.0f, Math.min(vFactor, hFactor));
-					if (factor < 1.0f) {
-						// scaled to fit available area
-						image = GraniteUtils.getScaledInstance(image,
-								(int) (factor * image.getImageData().width),
-								(int) (factor * image.getImageData().height));
-					}
-
-					imageLoadedDone = true;
-				}
+				ImageData imageData = imageLoader.getResult();
+				if (imageData == null)
+					return;
+				// the album art has been decoded and scaled off the UI
+				// thread, and the native image is created by the upload queue
+				imageUpload = ImageUploadQueue.getDefault().upload(imageData,
+						new ImageUploadQueue.UploadCallback() {
+							@Override
+							public void uploaded(Image uploaded) {
+								if ((generation != AlbumOverviewComponent.this.generation)
+										|| isDisposed()) {
+									// this component has moved on to another
+									// album
+									ResourceTracker.dispose(uploaded);
+									return;
+								}
+								synchronized (AlbumOverviewComponent.this) {
+									image = uploaded;
+									imageLoadedDone = true;
+								}
+								imageFadeInTimeline.play();
+							}
+						});
 			}
 		};
-		loadScenario.addScenarioActor(scaler);
-
-		// and fade it in
-		Timeline imageFadeInTimeline = new Timeline(AlbumOverviewComponent.this);
-		imageFadeInTimeline.addPropertyToInterpolate("imageAlpha", 0.0f, 1.0f);
-		imageFadeInTimeline.addCallback(new SWTRepaintCallback(
-				AlbumOverviewComponent.this));
-		imageFadeInTimeline.setDuration(500);
-		loadScenario.addScenarioActor(imageFadeInTimeline);
+		loadScenario.addScenarioActor(loaded);
 
 		return loadScenario;
 	}
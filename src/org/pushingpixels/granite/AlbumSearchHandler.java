@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.pushingpixels.granite.BackendConnector.AlbumSearchCallback;
+import org.pushingpixels.granite.data.Album;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * SAX handler for the MusicBrainz release search results. Unlike building the
+ * full document tree, this handler applies the album filters as soon as the
+ * matching <code>release</code> element is closed, and passes each accepted
+ * album to the {@link AlbumSearchCallback} while the rest of the response is
+ * still being downloaded and parsed.
+ * 
+ * @author Kirill Grouchnikov
+ */
+class AlbumSearchHandler extends DefaultHandler {
+	/**
+	 * The callback to notify on every accepted album.
+	 */
+	private AlbumSearchCallback callback;
+
+	/**
+	 * The depth of the current element in the document.
+	 */
+	private int depth;
+
+	/**
+	 * The depth of the currently parsed <code>release</code> element, or -1
+	 * if the parser is not inside a release.
+	 */
+	private int releaseDepth;
+
+	/**
+	 * The album that is being built from the currently parsed release. Is
+	 * <code>null</code> if the current release is not of the matching type.
+	 */
+	private Album album;
+
+	private boolean hasArtist;
+
+	private boolean hasAsin;
+
+	private boolean hasReleaseEvents;
+
+	private boolean foundUsRelease;
+
+	private boolean inArtist;
+
+	private boolean inReleaseEvents;
+
+	/**
+	 * Accumulates the text of the currently captured element. Is
+	 * <code>null</code> when the text of the current element is not needed.
+	 */
+	private StringBuilder text;
+
+	/**
+	 * ASINs of all albums passed to the callback so far.
+	 */
+	private Set<String> foundAsins;
+
+	/**
+	 * Names of all albums passed to the callback so far.
+	 */
+	private Set<String> foundNames;
+
+	/**
+	 * Creates a new handler.
+	 * 
+	 * @param callback
+	 *            The callback to notify on every accepted album.
+	 */
+	public AlbumSearchHandler(AlbumSearchCallback callback) {
+		this.callback = callback;
+		this.depth = 0;
+		this.releaseDepth = -1;
+		this.foundAsins = new HashSet<String>();
+		this.foundNames = new HashSet<String>();
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName,
+			Attributes attributes) {
+		depth++;
+
+		if (releaseDepth < 0) {
+			if ("release".equals(localName)) {
+				releaseDepth = depth;
+				hasArtist = false;
+				hasAsin = false;
+				hasReleaseEvents = false;
+				foundUsRelease = false;
+				inArtist = false;
+				inReleaseEvents = false;
+
+				String releaseType = attributes.getValue("type");
+				if ("Album Official".equals(releaseType)
+						|| "Live Official".equals(releaseType)
+						|| "Remix Official".equals(releaseType)) {
+					album = new Album();
+					album.releaseID = attributes.getValue("id");
+				} else {
+					album = null;
+				}
+			}
+			return;
+		}
+
+		if (album == null)
+			return;
+
+		if (depth == releaseDepth + 1) {
+			if ("title".equals(localName) || "asin".equals(localName)) {
+				text = new StringBuilder();
+			}
+			if ("asin".equals(localName)) {
+				hasAsin = true;
+			}
+			if ("artist".equals(localName)) {
+				hasArtist = true;
+				inArtist = true;
+			}
+			if ("release-event-list".equals(localName)) {
+				hasReleaseEvents = true;
+				inReleaseEvents = true;
+			}
+			return;
+		}
+
+		if (depth == releaseDepth + 2) {
+			if (inArtist && "name".equals(localName)) {
+				text = new StringBuilder();
+			}
+			if (inReleaseEvents && !foundUsRelease
+					&& "event".equals(localName)) {
+				if ("US".equals(attributes.getValue("country"))) {
+					album.releaseDate = attributes.getValue("date");
+					if (album.releaseDate != null) {
+						foundUsRelease = true;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void characters(char[] ch, int start, int length) {
+		if (text != null) {
+			text.append(ch, start, length);
+		}
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName) {
+		try {
+			if ((releaseDepth < 0) || (album == null))
+				return;
+
+			if (depth == releaseDepth) {
+				releaseDone();
+				releaseDepth = -1;
+				album = null;
+				return;
+			}
+
+			if (depth == releaseDepth + 1) {
+				if ("title".equals(localName)) {
+					album.name = text.toString();
+				}
+				if ("asin".equals(localName)) {
+					album.asin = text.toString().trim();
+				}
+				if ("artist".equals(localName)) {
+					inArtist = false;
+				}
+				if ("release-event-list".equals(localName)) {
+					inReleaseEvents = false;
+				}
+			}
+
+			if ((depth == releaseDepth + 2) && inArtist
+					&& "name".equals(localName)) {
+				album.artist = text.toString();
+			}
+		} finally {
+			if (depth == releaseDepth) {
+				releaseDepth = -1;
+			}
+			text = null;
+			depth--;
+		}
+	}
+
+	/**
+	 * Applies the album filters to the release that has just been parsed, and
+	 * passes it to the callback if it has been accepted.
+	 */
+	private void releaseDone() {
+		if ((album.name == null) || !hasArtist || !hasAsin)
+			return;
+		if (album.asin.length() == 0)
+			return;
+		if (!hasReleaseEvents || !foundUsRelease)
+			return;
+
+		// do we already have one?
+		if (foundAsins.contains(album.asin) || foundNames.contains(album.name))
+			return;
+
+		foundAsins.add(album.asin);
+		foundNames.add(album.name);
+		callback.albumFound(album);
+	}
+}
@@ -29,108 +29,133 @@
  */
 package org.pushingpixels.granite;
 
-import java.io.*;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.input.SAXBuilder;
+import org.pushingpixels.granite.backend.*;
 import org.pushingpixels.granite.data.Album;
 import org.pushingpixels.granite.data.Track;
 
 public class BackendConnector {
+	/**
+	 * The in-flight track searches, keyed by release ID.
+	 */
+	private static final SingleFlight<List<Track>> trackSearches = new SingleFlight<List<Track>>(
+			FetchScheduler.getDefault().getExecutor(
+					FetchScheduler.MUSICBRAINZ_HOST));
+
+	/**
+	 * Callback for the streaming album search. Is notified on every accepted
+	 * album as soon as the matching release has been parsed.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	public static interface AlbumSearchCallback {
+		/**
+		 * Called on the search thread for every accepted album.
+		 * 
+		 * @param album
+		 *            The accepted album.
+		 */
+		public void albumFound(Album album);
+	}
+
 	public static List<Album> doAlbumSearch(String artistId) throws Exception {
-		List<Album> result = new ArrayList<Album>();
+		final List<Album> result = new ArrayList<Album>();
+		doAlbumSearch(artistId, new AlbumSearchCallback() {
+			@Override
+			public void albumFound(Album album) {
+				result.add(album);
+			}
+		});
+		return result;
+	}
 
-		URL url = new URL(
+	/**
+	 * Searches for the albums of the specified artist. The response is parsed
+	 * as it is being downloaded, and each accepted album is passed to the
+	 * callback without waiting for the rest of the response.
+	 * 
+	 * @param artistId
+	 *            MusicBrainz ID of the artist.
+	 * @param callback
+	 *            The callback to notify on every accepted album.
+	 * @throws Exception
+	 *             If the download or the parsing failed.
+	 */
+	public static void doAlbumSearch(String artistId,
+			AlbumSearchCallback callback) throws Exception {
+		InputStream in = HttpResponseCache.getDefault().openStream(
 				"http://musicbrainz.org/ws/1/release/MBID/?type=xml&limit=100&artistid="
 						+ artistId);
-		BufferedReader in = new BufferedReader(new InputStreamReader(url
-				.openStream()));
-
-		SAXBuilder builder = new SAXBuilder();
-		Document doc = builder.build(in);
-		Element root = doc.getRootElement();
 
-		Element releaseList = (Element) root.getChildren().get(0);
-		for (Object relObj : releaseList.getChildren()) {
-			Element rel = (Element) relObj;
-			String releaseType = rel.getAttributeValue("type");
-			if ("Album Official".equals(releaseType)
-					|| "Live Official".equals(releaseType)
-					|| "Remix Official".equals(releaseType)) {
-				Album album = new Album();
-				album.name = rel.getChild("title", rel.getNamespace())
-						.getText();
-				album.releaseID = rel.getAttributeValue("id");
-
-				Element artist = rel.getChild("artist", rel.getNamespace());
-				if (artist == null)
-					continue;
-				album.artist = artist.getChildText("name", rel.getNamespace());
-
-				Element asin = rel.getChild("asin", rel.getNamespace());
-				if (asin == null)
-					continue;
-
-				if (asin != null) {
-					album.asin = asin.getText().trim();
-				}
-				if (album.asin.length() == 0)
-					continue;
-
-				Element relEventList = rel.getChild("release-event-list", rel
-						.getNamespace());
-				if (relEventList == null)
-					continue;
-				boolean foundUsRelease = false;
-				for (Object relEventObj : relEventList.getChildren("event", rel
-						.getNamespace())) {
-					Element relEvent = (Element) relEventObj;
-					if (!"US".equals(relEvent.getAttributeValue("country")))
-						continue;
-					album.releaseDate = relEvent.getAttributeValue("date");
-					if (album.releaseDate != null) {
-						foundUsRelease = true;
-						break;
-					}
-				}
-				if (!foundUsRelease)
-					continue;
-
-				// do we already have one?
-				boolean isDuplicate = false;
-				for (Album present : result) {
-					if (present.asin.equals(album.asin)
-							|| present.name.equals(album.name)) {
-						isDuplicate = true;
-						break;
-					}
-				}
-				if (isDuplicate)
-					continue;
-
-				result.add(album);
-			}
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(true);
+			SAXParser parser = factory.newSAXParser();
+			parser.parse(in, new AlbumSearchHandler(callback));
+		} finally {
+			in.close();
 		}
+	}
 
-		in.close();
+	/**
+	 * Requests the track listing of the specified release. Concurrent requests
+	 * for the same release share one network call.
+	 * 
+	 * @param releaseId
+	 *            MusicBrainz ID of the release.
+	 * @return The handle for the (unmodifiable) track listing.
+	 */
+	public static FlightHandle<List<Track>> doTrackSearchAsync(
+			String releaseId) {
+		return doTrackSearchAsync(releaseId, FetchPriority.URGENT);
+	}
 
-		return result;
+	/**
+	 * Requests the track listing of the specified release. Concurrent requests
+	 * for the same release share one network call, which runs with the most
+	 * urgent priority of the requests.
+	 * 
+	 * @param releaseId
+	 *            MusicBrainz ID of the release.
+	 * @param priority
+	 *            The priority of the network call.
+	 * @return The handle for the (unmodifiable) track listing.
+	 */
+	public static FlightHandle<List<Track>> doTrackSearchAsync(
+			final String releaseId, FetchPriority priority) {
+		return trackSearches.submit(releaseId, new Callable<List<Track>>() {
+			@Override
+			public List<Track> call() throws Exception {
+				return Collections.unmodifiableList(doTrackSearch(releaseId));
+			}
+		}, priority);
 	}
 
 	public static List<Track> doTrackSearch(String releaseId) throws Exception {
 		List<Track> result = new ArrayList<Track>();
 
-		URL url = new URL("http://musicbrainz.org/ws/1/release/" + releaseId
-				+ "?type=xml&inc=tracks");
-		BufferedReader in = new BufferedReader(new InputStreamReader(url
-				.openStream()));
+		InputStream in = HttpResponseCache.getDefault().openStream(
+				"http://musicbrainz.org/ws/1/release/" + releaseId
+						+ "?type=xml&inc=tracks");
 
-		SAXBuilder builder = new SAXBuilder();
-		Document doc = builder.build(in);
+		Document doc;
+		try {
+			SAXBuilder builder = new SAXBuilder();
+			doc = builder.build(in);
+		} finally {
+			in.close();
+		}
 		Element root = doc.getRootElement();
 
 		Element release = (Element) root.getChildren().get(0);
@@ -146,19 +171,44 @@ public class BackendConnector {
 			result.add(tr);
 		}
 
-		in.close();
-
 		return result;
 	}
 
 	public static InputStream getAlbumArt(String asin) throws Exception {
-		return new URL("http://ec1.images-amazon.com/images/P/" + asin
-				+ ".01.MZZZZZZZ.jpg").openStream();
+		return getArt(asin + ".M", "http://ec1.images-amazon.com/images/P/"
+				+ asin + ".01.MZZZZZZZ.jpg");
 	}
 
 	public static InputStream getLargeAlbumArt(String asin) throws Exception {
-		return new URL("http://ec1.images-amazon.com/images/P/" + asin
-				+ ".01.LZZZZZZZ.jpg").openStream();
+		return getArt(asin + ".L", "http://ec1.images-amazon.com/images/P/"
+				+ asin + ".01.LZZZZZZZ.jpg");
+	}
+
+	/**
+	 * Returns the album art bytes. The art is read from the local pack file if
+	 * it has been downloaded before, and is added to the pack file otherwise.
+	 * 
+	 * @param key
+	 *            Pack file key of the album art.
+	 * @param url
+	 *            Download URL of the album art.
+	 * @return The album art bytes.
+	 * @throws Exception
+	 *             If the download failed.
+	 */
+	private static InputStream getArt(String key, String url)
+			throws Exception {
+		AlbumArtPackFile packFile = AlbumArtPackFile.getDefault();
+		if (packFile != null) {
+			ByteBuffer cached = packFile.get(key);
+			if (cached != null)
+				return new ByteBufferInputStream(cached);
+		}
+
+		byte[] bytes = HttpTransport.getDefault().fetch(url);
+		if (packFile != null)
+			packFile.put(key, bytes);
+		return new ByteArrayInputStream(bytes);
 	}
 
 }
@@ -34,9 +34,9 @@ import org.eclipse.swt.events.*;
 import org.eclipse.swt.graphics.*;
 import org.eclipse.swt.widgets.Canvas;
 import org.eclipse.swt.widgets.Composite;
+import org.pushingpixels.granite.details.DetailsPrefetcher;
 import org.pushingpixels.granite.details.DetailsWindowManager;
 import org.pushingpixels.trident.Timeline;
-import org.pushingpixels.trident.swt.SWTRepaintCallback;
 
 /**
  * The close button of the Granite demo.
@@ -65,6 +65,9 @@ public class CloseButton extends Canvas {
 			@Override
 			public void mouseDown(MouseEvent e) {
 				DetailsWindowManager.disposeCurrentlyShowing();
+				// the overview album art requests are cancelled when their
+				// components are disposed with the main shell
+				DetailsPrefetcher.getDefault().cancelAll();
 
 				// fade out the main shell and dispose it when it is
 				// at full transparency
@@ -97,7 +100,7 @@ public class CloseButton extends Canvas {
 		// fade in the component
 		Timeline shownTimeline = new Timeline(CloseButton.this);
 		shownTimeline.addPropertyToInterpolate("alpha", 0, 255);
-		shownTimeline.addCallback(new SWTRepaintCallback(CloseButton.this));
+		shownTimeline.addCallback(new FrameRepaintCallback(CloseButton.this));
 		shownTimeline.setDuration(500);
 		shownTimeline.play();
 
@@ -29,25 +29,30 @@
  */
 package org.pushingpixels.granite;
 
-import java.util.List;
-
 import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.swt.SWT;
-import org.eclipse.swt.events.MouseAdapter;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.layout.FillLayout;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
 import org.pushingpixels.granite.data.Album;
-import org.pushingpixels.granite.details.DetailsWindowManager;
 import org.pushingpixels.trident.Timeline;
 
 public class DemoApp {
 	MainContentPanel mainContentPanel;
 
+	/**
+	 * Inserts the found albums into {@link #mainContentPanel}.
+	 */
+	AlbumInsertionQueue insertionQueue;
+
 	public DemoApp(Shell shell) {
 		this.mainContentPanel = new MainContentPanel(shell);
+		this.insertionQueue = new AlbumInsertionQueue(mainContentPanel,
+				FrameScheduler.getDefault(), Integer.getInteger(
+						"granite.insert.maxPending", 64), Integer.getInteger(
+						"granite.insert.frameBudget", 4));
 	}
 
 	public void doLoad(final String searchString) throws Exception {
@@ -58,27 +63,23 @@ public class DemoApp {
 					org.eclipse.core.runtime.IProgressMonitor monitor) {
 				System.out.println("Searching");
 				try {
-					final List<Album> result = BackendConnector
-							.doAlbumSearch(searchString);
+					BackendConnector.doAlbumSearch(searchString,
+							new BackendConnector.AlbumSearchCallback() {
+								@Override
+								public void albumFound(Album album) {
+									// push the album item to the screen
+									// while the search is still running
+									try {
+										insertionQueue.offer(album);
+									} catch (InterruptedException ie) {
+										Thread.currentThread().interrupt();
+									}
+								}
+							});
+					insertionQueue.awaitDrained();
 					Display.getDefault().asyncExec(new Runnable() {
 						@Override
 						public void run() {
-							for (final Album album : result) {
-								// push the album item to the screen
-								AlbumOverviewComponent albumOverviewComp = mainContentPanel
-										.addAlbumItem(album);
-								albumOverviewComp
-										.addMouseListener(new MouseAdapter() {
-											@Override
-											public void mouseUp(
-													org.eclipse.swt.events.MouseEvent e) {
-												DetailsWindowManager.show(
-														mainContentPanel
-																.getShell(),
-														album);
-											};
-										});
-							}
 							System.out.println("Done searching");
 							mainContentPanel.setLoading(false);
 						}
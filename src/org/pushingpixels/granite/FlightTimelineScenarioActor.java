@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite;
+
+import java.util.concurrent.ExecutionException;
+
+import org.pushingpixels.granite.backend.FlightHandle;
+import org.pushingpixels.trident.TimelineScenario.TimelineScenarioActor;
+
+/**
+ * Timeline scenario actor that waits for a backend request. Unlike
+ * {@link EclipseJobTimelineScenarioActor}, this actor does not start a job of
+ * its own. The request runs on the executor of its
+ * {@link org.pushingpixels.granite.backend.SingleFlight}, and the scenario
+ * polls the request for completion. Note that the album art requests still
+ * hold a thread of the bounded load pool of
+ * {@link org.pushingpixels.granite.art.AlbumArtCache} while they wait for
+ * their download.
+ * 
+ * @author Kirill Grouchnikov
+ * @param <V>
+ *            The type of the requested resource.
+ */
+public abstract class FlightTimelineScenarioActor<V> implements
+		TimelineScenarioActor {
+	private volatile FlightHandle<V> handle;
+
+	/**
+	 * Starts the backend request. Is called when this actor is played.
+	 * 
+	 * @return The handle of the started request.
+	 */
+	protected abstract FlightHandle<V> startFlight();
+
+	/**
+	 * Returns the requested resource.
+	 * 
+	 * @return The requested resource, or <code>null</code> if the request has
+	 *         not completed successfully.
+	 */
+	public V getResult() {
+		FlightHandle<V> handle = this.handle;
+		if ((handle == null) || !handle.isDone() || handle.isCancelled())
+			return null;
+		try {
+			return handle.get();
+		} catch (ExecutionException ee) {
+			ee.getCause().printStackTrace();
+			return null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Cancels the backend request of this actor. The request itself keeps
+	 * running if it is shared with other callers.
+	 */
+	public void cancel() {
+		FlightHandle<V> handle = this.handle;
+		if (handle != null)
+			handle.cancel(true);
+	}
+
+	@Override
+	public boolean isDone() {
+		FlightHandle<V> handle = this.handle;
+		return (handle != null) && handle.isDone();
+	}
+
+	@Override
+	public void play() {
+		this.handle = this.startFlight();
+	}
+
+	@Override
+	public void resetDoneFlag() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean supportsReplay() {
+		return false;
+	}
+}
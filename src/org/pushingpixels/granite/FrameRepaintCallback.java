@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite;
+
+import org.eclipse.swt.widgets.Control;
+import org.pushingpixels.trident.Timeline.TimelineState;
+import org.pushingpixels.trident.callback.TimelineCallback;
+
+/**
+ * Repaints the specified control on every timeline pulse. Unlike
+ * <code>SWTRepaintCallback</code>, the repaints are not issued directly but
+ * are requested from the {@link FrameScheduler}, so that the repaints of all
+ * the timelines that animate the same control are merged into one repaint per
+ * frame.
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class FrameRepaintCallback implements TimelineCallback {
+	/**
+	 * The control to repaint.
+	 */
+	private Control control;
+
+	/**
+	 * Creates a new repaint callback.
+	 * 
+	 * @param control
+	 *            The control to repaint.
+	 */
+	public FrameRepaintCallback(Control control) {
+		this.control = control;
+	}
+
+	@Override
+	public void onTimelineStateChanged(TimelineState oldState,
+			TimelineState newState, float durationFraction,
+			float timelinePosition) {
+		FrameScheduler.getDefault().requestRedraw(this.control);
+	}
+
+	@Override
+	public void onTimelinePulse(float durationFraction, float timelinePosition) {
+		FrameScheduler.getDefault().requestRedraw(this.control);
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite;
+
+import java.util.*;
+
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Drives the per-frame work of the UI. The animations mark the controls that
+ * need to be repainted with {@link #requestRedraw(Control)}, and all the
+ * requests made between two frames are merged into a single redraw of every
+ * control. Work that needs to run once per frame, such as stepping an
+ * animation or spreading a burst of work over several frames, is registered
+ * as a {@link FrameTask}. Frames are only scheduled while there is pending
+ * work, at most <code>granite.frameRate</code> frames per second (default
+ * 60).
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class FrameScheduler {
+	/**
+	 * The shared scheduler instance.
+	 */
+	private static FrameScheduler instance;
+
+	/**
+	 * The display that runs the frames.
+	 */
+	private Display display;
+
+	/**
+	 * The minimal interval between the starts of two frames.
+	 */
+	private long frameIntervalNanos;
+
+	/**
+	 * The controls to be redrawn on the next frame.
+	 */
+	private Set<Control> dirty;
+
+	/**
+	 * The tasks to be run on the next frame.
+	 */
+	private Set<FrameTask> tasks;
+
+	/**
+	 * The tasks that are running in the current frame.
+	 */
+	private Set<FrameTask> runningTasks;
+
+	/**
+	 * Indicates whether the next frame has been scheduled.
+	 */
+	private boolean isFrameScheduled;
+
+	/**
+	 * The start time of the last frame.
+	 */
+	private long lastFrameTime;
+
+	/**
+	 * The number of frames run so far.
+	 */
+	private long frameCount;
+
+	/**
+	 * The number of redraw requests so far.
+	 */
+	private long redrawRequestCount;
+
+	/**
+	 * The number of redraws done so far.
+	 */
+	private long redrawCount;
+
+	/**
+	 * Runs a single frame on the UI thread.
+	 */
+	private Runnable frame = new Runnable() {
+		@Override
+		public void run() {
+			runFrame();
+		}
+	};
+
+	/**
+	 * Work that runs once per frame on the UI thread.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	public static interface FrameTask {
+		/**
+		 * Runs the work of a single frame. Is called on the UI thread before
+		 * the controls are redrawn, so that the controls marked with
+		 * {@link FrameScheduler#requestRedraw(Control)} in this method are
+		 * redrawn in the same frame.
+		 * 
+		 * @param frameTime
+		 *            The start time of this frame, as returned by
+		 *            {@link System#nanoTime()}.
+		 * @return <code>true</code> if this task should run on the next frame
+		 *         as well, <code>false</code> otherwise.
+		 */
+		public boolean runFrame(long frameTime);
+	}
+
+	/**
+	 * Returns the shared scheduler.
+	 * 
+	 * @return The shared scheduler.
+	 */
+	public static synchronized FrameScheduler getDefault() {
+		if (instance == null) {
+			instance = new FrameScheduler(Display.getDefault(), Integer
+					.getInteger("granite.frameRate", 60));
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new scheduler.
+	 * 
+	 * @param display
+	 *            The display that runs the frames.
+	 * @param framesPerSecond
+	 *            The maximal number of frames per second.
+	 */
+	public FrameScheduler(Display display, int framesPerSecond) {
+		this.display = display;
+		this.frameIntervalNanos = 1000000000L / framesPerSecond;
+		this.dirty = new LinkedHashSet<Control>();
+		this.tasks = new LinkedHashSet<FrameTask>();
+		this.runningTasks = new HashSet<FrameTask>();
+	}
+
+	/**
+	 * Returns the display that runs the frames.
+	 * 
+	 * @return The display that runs the frames.
+	 */
+	public Display getDisplay() {
+		return this.display;
+	}
+
+	/**
+	 * Marks the specified control to be redrawn on the next frame. Can be
+	 * called on any thread.
+	 * 
+	 * @param control
+	 *            Control to redraw.
+	 */
+	public synchronized void requestRedraw(Control control) {
+		this.redrawRequestCount++;
+		this.dirty.add(control);
+		this.scheduleFrame();
+	}
+
+	/**
+	 * Adds the specified task to run on the next frame. The task keeps running
+	 * once per frame until it returns <code>false</code> or is removed. Adding
+	 * a task that is already scheduled does nothing. Can be called on any
+	 * thread.
+	 * 
+	 * @param task
+	 *            Task to run.
+	 */
+	public synchronized void addFrameTask(FrameTask task) {
+		this.tasks.add(task);
+		this.scheduleFrame();
+	}
+
+	/**
+	 * Removes the specified task. Can be called on any thread.
+	 * 
+	 * @param task
+	 *            Task to remove.
+	 */
+	public synchronized void removeFrameTask(FrameTask task) {
+		this.tasks.remove(task);
+		this.runningTasks.remove(task);
+	}
+
+	private void scheduleFrame() {
+		if (this.isFrameScheduled || this.display.isDisposed())
+			return;
+		this.isFrameScheduled = true;
+		long delayNanos = this.lastFrameTime + this.frameIntervalNanos
+				- System.nanoTime();
+		final int delay = (int) Math.max(0, delayNanos / 1000000L);
+		if (delay == 0) {
+			this.display.asyncExec(this.frame);
+		} else {
+			// timerExec must be called on the UI thread
+			this.display.asyncExec(new Runnable() {
+				@Override
+				public void run() {
+					display.timerExec(delay, frame);
+				}
+			});
+		}
+	}
+
+	private void runFrame() {
+		long frameTime = System.nanoTime();
+		List<FrameTask> frameTasks;
+		synchronized (this) {
+			this.isFrameScheduled = false;
+			this.lastFrameTime = frameTime;
+			this.frameCount++;
+			// the tasks added while this frame runs go to the next frame
+			frameTasks = new ArrayList<FrameTask>(this.tasks);
+			this.runningTasks.addAll(this.tasks);
+			this.tasks.clear();
+		}
+
+		for (FrameTask task : frameTasks) {
+			boolean isRunning;
+			try {
+				isRunning = task.runFrame(frameTime);
+			} catch (Throwable t) {
+				t.printStackTrace();
+				isRunning = false;
+			}
+			synchronized (this) {
+				// keep the task unless it has been removed while running
+				if (this.runningTasks.remove(task) && isRunning)
+					this.tasks.add(task);
+			}
+		}
+
+		List<Control> toRedraw;
+		synchronized (this) {
+			toRedraw = new ArrayList<Control>(this.dirty);
+			this.dirty.clear();
+		}
+		for (Control control : toRedraw) {
+			if (!control.isDisposed()) {
+				control.redraw();
+				synchronized (this) {
+					this.redrawCount++;
+				}
+			}
+		}
+
+		synchronized (this) {
+			if (!this.tasks.isEmpty() || !this.dirty.isEmpty())
+				this.scheduleFrame();
+		}
+	}
+
+	/**
+	 * Returns the number of frames run so far.
+	 * 
+	 * @return The number of frames run so far.
+	 */
+	public synchronized long getFrameCount() {
+		return this.frameCount;
+	}
+
+	/**
+	 * Returns the number of redraw requests so far.
+	 * 
+	 * @return The number of redraw requests so far.
+	 */
+	public synchronized long getRedrawRequestCount() {
+		return this.redrawRequestCount;
+	}
+
+	/**
+	 * Returns the number of redraw requests that have been merged into other
+	 * requests for the same control and frame, or have been dropped because
+	 * the control has been disposed.
+	 * 
+	 * @return The number of merged redraw requests.
+	 */
+	public synchronized long getMergedRedrawCount() {
+		return this.redrawRequestCount - this.redrawCount
+				- this.dirty.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Frame scheduler: " + this.frameCount + " frames, "
+				+ this.redrawRequestCount + " redraw requests, "
+				+ this.getMergedRedrawCount() + " merged";
+	}
+}
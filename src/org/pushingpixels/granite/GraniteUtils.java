@@ -29,73 +29,43 @@
  */
 package org.pushingpixels.granite;
 
-import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.*;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Shell;
+import org.pushingpixels.granite.art.ImageScaler;
 import org.pushingpixels.trident.Timeline;
 import org.pushingpixels.trident.Timeline.TimelineState;
 import org.pushingpixels.trident.callback.UIThreadTimelineCallbackAdapter;
 
 public class GraniteUtils {
+	/**
+	 * Returns a scaled copy of the specified image. The scaling itself works on
+	 * the image data and does not touch the display, see {@link ImageScaler}.
+	 * 
+	 * @param img
+	 *            Image to scale.
+	 * @param targetWidth
+	 *            The width of the scaled image.
+	 * @param targetHeight
+	 *            The height of the scaled image.
+	 * @return The scaled image.
+	 */
 	public static Image getScaledInstance(Image img, int targetWidth,
 			int targetHeight) {
-		Image ret = img;
-		// Use multi-step technique: start with original size, then
-		// scale down in multiple passes with drawImage()
-		// until the target size is reached
-		int w = img.getImageData().width;
-		int h = img.getImageData().height;
-
-		do {
-			if (w > targetWidth) {
-				w /= 2;
-				if (w < targetWidth) {
-					w = targetWidth;
-				}
-			}
-
-			if (h > targetHeight) {
-				h /= 2;
-				if (h < targetHeight) {
-					h = targetHeight;
-				}
-			}
-
-			Image tmp = new Image(img.getDevice(), w, h);
-			GC gc = new GC(tmp);
-			// use antialias for better quality
-			gc.setAntialias(SWT.ON);
-			gc.drawImage(ret, 0, 0, ret.getImageData().width, ret
-					.getImageData().height, 0, 0, w, h);
-
-			ret = tmp;
-		} while (w != targetWidth || h != targetHeight);
-
-		return ret;
+		return ResourceTracker.track(new Image(img.getDevice(), ImageScaler
+				.scale(img.getImageData(), targetWidth, targetHeight)));
 	}
 
 	public static int paintMultilineText(Control control, GC gc, String text,
 			int textX, int textWidth, int textY, int maxTextLineCount) {
-		int fa = gc.getFontMetrics().getAscent()
-				+ gc.getFontMetrics().getDescent();
-
 		if (text.length() == 0)
 			return textY;
 
-		SWTLineBreakMeasurer lineBreakMeasurer = new SWTLineBreakMeasurer(
-				control, text, gc.getFont());
+		int fa = TextMeasurer.getLineHeight(gc);
+		String[] lines = TextMeasurer.getLines(gc, text, textWidth);
 		int lineCount = 0;
-		while (true) {
-			String string = lineBreakMeasurer.next(textWidth);
-			if (string == null)
-				break;
-
-			TextLayout layout = new TextLayout(gc.getDevice());
-			layout.setText(string);
-			layout.setFont(gc.getFont());
-			layout.draw(gc, textX, textY);
-			layout.dispose();
+		for (String line : lines) {
+			gc.drawString(line, textX, textY, true);
 
 			textY += fa;
 			lineCount++;
@@ -108,92 +78,11 @@ public class GraniteUtils {
 
 	public static int getMultilineTextHeight(Control control, GC gc,
 			String text, int availableWidth) {
-		int fa = gc.getFontMetrics().getAscent()
-				+ gc.getFontMetrics().getDescent();
-
 		if (text.length() == 0)
 			return 0;
 
-		SWTLineBreakMeasurer lineBreakMeasurer = new SWTLineBreakMeasurer(
-				control, text, gc.getFont());
-		int lineCount = 0;
-		while (true) {
-			String string = lineBreakMeasurer.next(availableWidth);
-			if (string == null)
-				break;
-
-			lineCount++;
-		}
-
-		return lineCount * fa;
-	}
-
-	private static class SWTLineBreakMeasurer {
-		Control control;
-
-		String string;
-
-		Font font;
-
-		int currLocation;
-
-		public SWTLineBreakMeasurer(Control control, String string, Font font) {
-			this.control = control;
-			this.string = string;
-			this.font = font;
-			this.currLocation = 0;
-		}
-
-		public String next(int availableWidth) {
-			GC gc = new GC(this.control);
-			gc.setFont(this.font);
-
-			try {
-				// skip whitespaces
-				while (currLocation < string.length()) {
-					char c = string.charAt(currLocation);
-					if (!Character.isWhitespace(c)) {
-						break;
-					}
-					currLocation++;
-				}
-
-				if (currLocation == string.length())
-					return null;
-
-				String curr = "";
-				int lastWhiteSpaceLoc = -1;
-				int beginIndex = currLocation;
-				while (currLocation < string.length()) {
-					char c = string.charAt(currLocation);
-					if (Character.isWhitespace(c)) {
-						if (gc.stringExtent(curr).x >= availableWidth) {
-							// try to go back to the last whitespace location
-							if (lastWhiteSpaceLoc >= 0) {
-								currLocation = lastWhiteSpaceLoc;
-								return string.substring(beginIndex,
-										currLocation);
-							}
-							return curr;
-						}
-						lastWhiteSpaceLoc = currLocation;
-					}
-					curr += c;
-					currLocation++;
-				}
-				if (gc.stringExtent(curr).x >= availableWidth) {
-					// try to go back to the last whitespace location
-					if (lastWhiteSpaceLoc >= 0) {
-						currLocation = lastWhiteSpaceLoc;
-						return string.substring(beginIndex, currLocation);
-					}
-					return curr;
-				}
-				return curr;
-			} finally {
-				gc.dispose();
-			}
-		}
+		return TextMeasurer.getLines(gc, text, availableWidth).length
+				* TextMeasurer.getLineHeight(gc);
 	}
 
 	public static void fadeOutAndDispose(final Shell shell, int fadeOutDuration) {
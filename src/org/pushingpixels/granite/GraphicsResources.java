@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite;
+
+import java.util.*;
+
+import org.eclipse.swt.graphics.*;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Hands out shared native graphics resources of a single {@link Display}.
+ * Resources are cached by value, so that all the callers that ask for the
+ * same color, font, cursor, gradient or round rectangle get the same native
+ * handle. Every <code>getXXX</code> call must be matched by a
+ * {@link #release(Resource)} call, and the callers must never dispose the
+ * returned resources themselves.
+ * 
+ * <p>
+ * A resource that is no longer referenced is not disposed immediately.
+ * Instead, it is kept in a small pool of idle resources, so that paint
+ * listeners that acquire and release the same resources on every frame reuse
+ * the same native handles. All the resources are disposed together with the
+ * display.
+ * </p>
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class GraphicsResources {
+	/**
+	 * The key of the registry in the display data.
+	 */
+	private static final String DATA_KEY = GraphicsResources.class.getName();
+
+	/**
+	 * The maximal number of resources that are kept alive while not being
+	 * referenced.
+	 */
+	private static final int MAX_IDLE = 64;
+
+	/**
+	 * The display of this registry.
+	 */
+	private Display display;
+
+	/**
+	 * All the cached resources, by value key.
+	 */
+	private Map<String, Entry> entries;
+
+	/**
+	 * All the cached resources, by the resource itself.
+	 */
+	private Map<Resource, Entry> entriesByResource;
+
+	/**
+	 * The cached resources that are not referenced, from the least recently
+	 * released.
+	 */
+	private LinkedHashMap<String, Entry> idle;
+
+	/**
+	 * <code>true</code> after the display has been disposed.
+	 */
+	private boolean disposed;
+
+	/**
+	 * A single cached resource.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private static class Entry {
+		private String key;
+
+		private Resource resource;
+
+		private int refCount;
+
+		Entry(String key, Resource resource) {
+			this.key = key;
+			this.resource = resource;
+		}
+	}
+
+	/**
+	 * Returns the registry of the specified display, creating it on the first
+	 * call.
+	 * 
+	 * @param display
+	 *            Display.
+	 * @return The registry of the specified display.
+	 */
+	public static synchronized GraphicsResources get(Display display) {
+		GraphicsResources result = (GraphicsResources) display
+				.getData(DATA_KEY);
+		if (result == null) {
+			final GraphicsResources registry = new GraphicsResources(display);
+			display.setData(DATA_KEY, registry);
+			display.disposeExec(new Runnable() {
+				@Override
+				public void run() {
+					registry.dispose();
+				}
+			});
+			result = registry;
+		}
+		return result;
+	}
+
+	private GraphicsResources(Display display) {
+		this.display = display;
+		this.entries = new HashMap<String, Entry>();
+		this.entriesByResource = new IdentityHashMap<Resource, Entry>();
+		this.idle = new LinkedHashMap<String, Entry>();
+	}
+
+	/**
+	 * Returns the shared color with the specified components.
+	 * 
+	 * @param red
+	 *            Red component.
+	 * @param green
+	 *            Green component.
+	 * @param blue
+	 *            Blue component.
+	 * @return The shared color.
+	 */
+	public synchronized Color getColor(int red, int green, int blue) {
+		String key = "color:" + red + "," + green + "," + blue;
+		Entry entry = this.acquire(key);
+		if (entry == null) {
+			entry = this.register(key, new Color(this.display, red, green,
+					blue));
+		}
+		return (Color) entry.resource;
+	}
+
+	/**
+	 * Returns the shared font with the specified attributes.
+	 * 
+	 * @param name
+	 *            Font name.
+	 * @param height
+	 *            Font height in points.
+	 * @param style
+	 *            Font style, a combination of <code>SWT.NORMAL</code>,
+	 *            <code>SWT.BOLD</code> and <code>SWT.ITALIC</code>.
+	 * @return The shared font.
+	 */
+	public synchronized Font getFont(String name, int height, int style) {
+		String key = "font:" + name + "," + height + "," + style;
+		Entry entry = this.acquire(key);
+		if (entry == null) {
+			entry = this.register(key, new Font(this.display, name, height,
+					style));
+		}
+		return (Font) entry.resource;
+	}
+
+	/**
+	 * Returns the shared cursor of the specified style.
+	 * 
+	 * @param style
+	 *            One of the <code>SWT.CURSOR_XXX</code> constants.
+	 * @return The shared cursor.
+	 */
+	public synchronized Cursor getCursor(int style) {
+		String key = "cursor:" + style;
+		Entry entry = this.acquire(key);
+		if (entry == null) {
+			entry = this.register(key, new Cursor(this.display, style));
+		}
+		return (Cursor) entry.resource;
+	}
+
+	/**
+	 * Returns the shared linear gradient between the specified points.
+	 * 
+	 * @param x1
+	 *            X coordinate of the start point.
+	 * @param y1
+	 *            Y coordinate of the start point.
+	 * @param x2
+	 *            X coordinate of the end point.
+	 * @param y2
+	 *            Y coordinate of the end point.
+	 * @param rgb1
+	 *            The color at the start point.
+	 * @param alpha1
+	 *            The alpha value at the start point.
+	 * @param rgb2
+	 *            The color at the end point.
+	 * @param alpha2
+	 *            The alpha value at the end point.
+	 * @return The shared gradient.
+	 */
+	public synchronized Pattern getLinearGradient(float x1, float y1,
+			float x2, float y2, RGB rgb1, int alpha1, RGB rgb2, int alpha2) {
+		String key = "gradient:" + x1 + "," + y1 + "," + x2 + "," + y2 + ","
+				+ rgb1.red + "," + rgb1.green + "," + rgb1.blue + "," + alpha1
+				+ "," + rgb2.red + "," + rgb2.green + "," + rgb2.blue + ","
+				+ alpha2;
+		Entry entry = this.acquire(key);
+		if (entry == null) {
+			// the pattern keeps its own copy of the colors
+			Color color1 = new Color(this.display, rgb1);
+			Color color2 = new Color(this.display, rgb2);
+			entry = this.register(key, new Pattern(this.display, x1, y1, x2,
+					y2, color1, alpha1, color2, alpha2));
+			color1.dispose();
+			color2.dispose();
+		}
+		return (Pattern) entry.resource;
+	}
+
+	/**
+	 * Returns the shared round rectangle path with the specified bounds.
+	 * 
+	 * @param x
+	 *            X coordinate of the rectangle.
+	 * @param y
+	 *            Y coordinate of the rectangle.
+	 * @param width
+	 *            Width of the rectangle.
+	 * @param height
+	 *            Height of the rectangle.
+	 * @param radius
+	 *            Corner radius.
+	 * @return The shared path.
+	 */
+	public synchronized Path getRoundRectangle(float x, float y, float width,
+			float height, float radius) {
+		String key = "roundRectangle:" + x + "," + y + "," + width + ","
+				+ height + "," + radius;
+		Entry entry = this.acquire(key);
+		if (entry == null) {
+			entry = this.register(key, new GraniteUtils.RoundRectangle(
+					this.display, x, y, width, height, radius));
+		}
+		return (Path) entry.resource;
+	}
+
+	/**
+	 * Releases a resource returned by one of the <code>getXXX</code> methods.
+	 * Passing <code>null</code> does nothing.
+	 * 
+	 * @param resource
+	 *            Resource to release.
+	 */
+	public synchronized void release(Resource resource) {
+		if ((resource == null) || this.disposed)
+			return;
+		Entry entry = this.entriesByResource.get(resource);
+		if ((entry == null) || (entry.refCount == 0)) {
+			throw new IllegalStateException("Resource " + resource
+					+ " is not acquired from this registry");
+		}
+		entry.refCount--;
+		if (entry.refCount > 0)
+			return;
+
+		this.idle.put(entry.key, entry);
+		if (this.idle.size() > MAX_IDLE) {
+			Iterator<Entry> eldest = this.idle.values().iterator();
+			Entry evicted = eldest.next();
+			eldest.remove();
+			this.entries.remove(evicted.key);
+			this.entriesByResource.remove(evicted.resource);
+			ResourceTracker.dispose(evicted.resource);
+		}
+	}
+
+	private Entry acquire(String key) {
+		if (this.disposed)
+			throw new IllegalStateException("Display is disposed");
+		Entry entry = this.entries.get(key);
+		if (entry == null)
+			return null;
+		if (entry.refCount == 0)
+			this.idle.remove(key);
+		entry.refCount++;
+		return entry;
+	}
+
+	private Entry register(String key, Resource resource) {
+		Entry entry = new Entry(key, ResourceTracker.track(resource));
+		entry.refCount = 1;
+		this.entries.put(key, entry);
+		this.entriesByResource.put(resource, entry);
+		return entry;
+	}
+
+	private synchronized void dispose() {
+		for (Entry entry : this.entries.values())
+			ResourceTracker.dispose(entry.resource);
+		this.entries.clear();
+		this.entriesByResource.clear();
+		this.idle.clear();
+		this.disposed = true;
+	}
+
+	/**
+	 * Returns the number of native handles held by this registry, including
+	 * the resources that are not referenced.
+	 * 
+	 * @return The number of native handles held by this registry.
+	 */
+	public synchronized int getHandleCount() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Returns the number of native handles that are not referenced and can be
+	 * disposed when the idle pool is full.
+	 * 
+	 * @return The number of native handles that are not referenced.
+	 */
+	public synchronized int getIdleCount() {
+		return this.idle.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Graphics resources: " + this.entries.size() + " handles, "
+				+ this.idle.size() + " idle";
+	}
+}
@@ -29,6 +29,8 @@
  */
 package org.pushingpixels.granite;
 
+import java.util.List;
+
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.widgets.*;
@@ -71,7 +73,11 @@ public class MainContentPanel extends Composite {
 		contentPanel.setLoading(isLoading);
 	}
 
-	public AlbumOverviewComponent addAlbumItem(Album albumItem) {
-		return contentPanel.addAlbumItem(albumItem);
+	public void addAlbumItem(Album albumItem) {
+		contentPanel.addAlbumItem(albumItem);
+	}
+
+	public void addAlbumItems(List<Album> albumItems) {
+		contentPanel.addAlbumItems(albumItems);
 	}
 }
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+import org.eclipse.swt.graphics.Resource;
+
+/**
+ * Opt-in tracking of native resources. Is enabled with the
+ * <code>granite.trackResources</code> system property. When enabled, every
+ * resource passed to {@link #track(Resource)} is recorded along with its
+ * allocation site until it is disposed with {@link #dispose(Resource)}. The
+ * live resources are periodically reported by type and allocation site, along
+ * with the resources that have been garbage collected without being disposed
+ * and have leaked their native handles. The report interval in milliseconds
+ * can be changed with the <code>granite.trackResources.interval</code> system
+ * property.
+ * 
+ * <p>
+ * A tracked resource must be disposed with {@link #dispose(Resource)}. A
+ * resource that is disposed directly is only noticed by the next report, and
+ * is reported with its allocation site as disposed directly. Once it has been
+ * garbage collected, it can no longer be told apart from a leaked resource.
+ * The garbage collected resources from the allocation sites that are known to
+ * dispose directly are therefore reported separately, and are not counted as
+ * leaked.
+ * </p>
+ * 
+ * <p>
+ * When tracking is disabled, {@link #track(Resource)} returns its argument and
+ * {@link #dispose(Resource)} disposes it.
+ * </p>
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class ResourceTracker {
+	/**
+	 * <code>true</code> if the resources are tracked.
+	 */
+	private static final boolean ENABLED = Boolean
+			.getBoolean("granite.trackResources");
+
+	/**
+	 * The tracked resources that have not been disposed, by identity hash
+	 * code.
+	 */
+	private static Map<Integer, List<Record>> live = new HashMap<Integer, List<Record>>();
+
+	/**
+	 * Gets the records of the garbage collected resources.
+	 */
+	private static ReferenceQueue<Resource> collected = new ReferenceQueue<Resource>();
+
+	/**
+	 * The number of resources that have been garbage collected without being
+	 * disposed, by type and allocation site.
+	 */
+	private static Map<String, Integer> leaked = new TreeMap<String, Integer>();
+
+	/**
+	 * The number of resources that have been disposed without going through
+	 * {@link #dispose(Resource)}, by type and allocation site.
+	 */
+	private static Map<String, Integer> disposedDirectly = new TreeMap<String, Integer>();
+
+	/**
+	 * The number of resources that have been garbage collected without being
+	 * disposed with {@link #dispose(Resource)}, from the allocation sites in
+	 * {@link #disposedDirectly}. These may or may not have leaked.
+	 */
+	private static Map<String, Integer> collectedUnknown = new TreeMap<String, Integer>();
+
+	/**
+	 * Periodically reports the tracked resources.
+	 */
+	private static Timer reporter;
+
+	/**
+	 * A single tracked resource.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private static class Record extends WeakReference<Resource> {
+		private int identity;
+
+		private String type;
+
+		private String site;
+
+		private boolean disposed;
+
+		Record(Resource resource, String site) {
+			super(resource, collected);
+			this.identity = System.identityHashCode(resource);
+			this.type = resource.getClass().getSimpleName();
+			this.site = site;
+		}
+	}
+
+	/**
+	 * Returns indication whether the resources are tracked.
+	 * 
+	 * @return <code>true</code> if the resources are tracked.
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * Starts tracking the specified resource. The resource must be disposed
+	 * with {@link #dispose(Resource)}.
+	 * 
+	 * @param <T>
+	 *            Resource type.
+	 * @param resource
+	 *            Newly created resource.
+	 * @return The same resource.
+	 */
+	public static <T extends Resource> T track(T resource) {
+		if (!ENABLED)
+			return resource;
+
+		Record record = new Record(resource, getAllocationSite());
+		synchronized (ResourceTracker.class) {
+			List<Record> records = live.get(record.identity);
+			if (records == null) {
+				records = new ArrayList<Record>(1);
+				live.put(record.identity, records);
+			}
+			records.add(record);
+			if (reporter == null) {
+				reporter = new Timer("Granite Resource Tracker", true);
+				long interval = Long.getLong(
+						"granite.trackResources.interval", 10000);
+				reporter.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						System.out.println(getReport());
+					}
+				}, interval, interval);
+			}
+		}
+		return resource;
+	}
+
+	/**
+	 * Disposes the specified resource and stops tracking it. Passing
+	 * <code>null</code> does nothing.
+	 * 
+	 * @param resource
+	 *            Resource to dispose.
+	 */
+	public static void dispose(Resource resource) {
+		if (resource == null)
+			return;
+		if (ENABLED) {
+			synchronized (ResourceTracker.class) {
+				int identity = System.identityHashCode(resource);
+				List<Record> records = live.get(identity);
+				if (records != null) {
+					for (Iterator<Record> it = records.iterator(); it
+							.hasNext();) {
+						Record record = it.next();
+						if (record.get() == resource) {
+							record.disposed = true;
+							it.remove();
+						}
+					}
+					if (records.isEmpty())
+						live.remove(identity);
+				}
+			}
+		}
+		resource.dispose();
+	}
+
+	/**
+	 * Returns the number of tracked resources that have not been disposed.
+	 * 
+	 * @return The number of tracked resources that have not been disposed.
+	 */
+	public static synchronized int getLiveCount() {
+		pollCollected();
+		int result = 0;
+		for (List<Record> records : live.values())
+			result += records.size();
+		return result;
+	}
+
+	/**
+	 * Returns the report on the live and the leaked resources, by type and
+	 * allocation site.
+	 * 
+	 * @return The report on the live and the leaked resources.
+	 */
+	public static synchronized String getReport() {
+		pollCollected();
+		Map<String, Integer> typeCounts = new TreeMap<String, Integer>();
+		Map<String, Integer> siteCounts = new TreeMap<String, Integer>();
+		for (Iterator<List<Record>> it = live.values().iterator(); it
+				.hasNext();) {
+			List<Record> records = it.next();
+			for (Iterator<Record> recordIt = records.iterator(); recordIt
+					.hasNext();) {
+				Record record = recordIt.next();
+				Resource resource = record.get();
+				if ((resource != null) && resource.isDisposed()) {
+					// disposed without going through this class
+					record.disposed = true;
+					recordIt.remove();
+					increment(disposedDirectly, record.type + " at "
+							+ record.site);
+					continue;
+				}
+				increment(typeCounts, record.type);
+				increment(siteCounts, record.type + " at " + record.site);
+			}
+			if (records.isEmpty())
+				it.remove();
+		}
+
+		StringBuilder result = new StringBuilder();
+		result.append("Live native resources: " + typeCounts);
+		for (Map.Entry<String, Integer> siteCount : siteCounts.entrySet()) {
+			result.append("\n\t" + siteCount.getValue() + " "
+					+ siteCount.getKey());
+		}
+		for (Map.Entry<String, Integer> leak : leaked.entrySet()) {
+			result.append("\n\tLEAKED " + leak.getValue() + " "
+					+ leak.getKey());
+		}
+		for (Map.Entry<String, Integer> direct : disposedDirectly.entrySet()) {
+			result.append("\n\tDISPOSED DIRECTLY " + direct.getValue() + " "
+					+ direct.getKey());
+		}
+		for (Map.Entry<String, Integer> unknown : collectedUnknown
+				.entrySet()) {
+			result.append("\n\tCOLLECTED, DISPOSED DIRECTLY OR LEAKED "
+					+ unknown.getValue() + " " + unknown.getKey());
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Moves the records of the garbage collected resources that have not been
+	 * disposed with {@link #dispose(Resource)} to {@link #leaked}, or to
+	 * {@link #collectedUnknown} if their allocation site is known to dispose
+	 * resources directly.
+	 */
+	private static void pollCollected() {
+		Record record;
+		while ((record = (Record) collected.poll()) != null) {
+			if (record.disposed)
+				continue;
+			List<Record> records = live.get(record.identity);
+			if (records != null) {
+				records.remove(record);
+				if (records.isEmpty())
+					live.remove(record.identity);
+			}
+			String key = record.type + " at " + record.site;
+			if (disposedDirectly.containsKey(key))
+				increment(collectedUnknown, key);
+			else
+				increment(leaked, key);
+		}
+	}
+
+	private static void increment(Map<String, Integer> counts, String key) {
+		Integer count = counts.get(key);
+		counts.put(key, (count == null) ? 1 : count + 1);
+	}
+
+	/**
+	 * Returns the first caller outside of this class.
+	 * 
+	 * @return The allocation site of a tracked resource.
+	 */
+	private static String getAllocationSite() {
+		StackTraceElement[] stack = new Throwable().getStackTrace();
+		for (StackTraceElement element : stack) {
+			if (!element.getClassName().equals(ResourceTracker.class.getName()))
+				return element.toString();
+		}
+		return "unknown";
+	}
+}
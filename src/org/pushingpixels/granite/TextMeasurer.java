@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite;
+
+import java.util.*;
+
+import org.eclipse.swt.graphics.*;
+
+/**
+ * Breaks text into lines that fit the available width. Character advances are
+ * measured once per font and kept in per-font tables, so that the width of any
+ * part of the text is a difference of two prefix sums. The line break
+ * positions are then found with a binary search, and the resulting lines are
+ * memoized by text, font and width.
+ * 
+ * <p>
+ * The line breaking matches the one used before: lines are broken at
+ * whitespaces, and a word that does not fit on its own line is not broken.
+ * Note that the widths ignore kerning.
+ * </p>
+ * 
+ * @author Kirill Grouchnikov
+ */
+class TextMeasurer {
+	/**
+	 * The maximal number of memoized line breaks.
+	 */
+	private static final int MAX_CACHED_LINES = 1024;
+
+	/**
+	 * The advance tables, keyed by font.
+	 */
+	private static Map<String, FontAdvances> fontAdvances = new HashMap<String, FontAdvances>();
+
+	/**
+	 * The memoized line breaks, in least recently used order.
+	 */
+	private static Map<String, String[]> cachedLines = new LinkedHashMap<String, String[]>(
+			16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+			return this.size() > MAX_CACHED_LINES;
+		}
+	};
+
+	/**
+	 * Character advances and line height of a single font.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private static class FontAdvances {
+		/**
+		 * The advances of the first 256 characters.
+		 */
+		int[] latinAdvances;
+
+		/**
+		 * The advances of the other characters, measured on first use.
+		 */
+		Map<Character, Integer> otherAdvances;
+
+		/**
+		 * The height of a single line.
+		 */
+		int lineHeight;
+
+		FontAdvances(GC gc) {
+			this.latinAdvances = new int[256];
+			for (char c = 0; c < 256; c++) {
+				this.latinAdvances[c] = gc.getAdvanceWidth(c);
+			}
+			this.otherAdvances = new HashMap<Character, Integer>();
+			FontMetrics fontMetrics = gc.getFontMetrics();
+			this.lineHeight = fontMetrics.getAscent()
+					+ fontMetrics.getDescent();
+		}
+
+		int getAdvance(GC gc, char c) {
+			if (c < 256)
+				return this.latinAdvances[c];
+			Integer advance = this.otherAdvances.get(c);
+			if (advance == null) {
+				advance = gc.getAdvanceWidth(c);
+				this.otherAdvances.put(c, advance);
+			}
+			return advance;
+		}
+	}
+
+	/**
+	 * Returns the key of the current font of the specified graphics context.
+	 */
+	private static String getFontKey(GC gc) {
+		FontData fontData = gc.getFont().getFontData()[0];
+		return fontData.getName() + "|" + fontData.getHeight() + "|"
+				+ fontData.getStyle();
+	}
+
+	private static FontAdvances getFontAdvances(GC gc, String fontKey) {
+		FontAdvances advances = fontAdvances.get(fontKey);
+		if (advances == null) {
+			advances = new FontAdvances(gc);
+			fontAdvances.put(fontKey, advances);
+		}
+		return advances;
+	}
+
+	/**
+	 * Returns the height of a single line in the current font of the specified
+	 * graphics context.
+	 * 
+	 * @param gc
+	 *            Graphics context.
+	 * @return The height of a single line.
+	 */
+	public static synchronized int getLineHeight(GC gc) {
+		return getFontAdvances(gc, getFontKey(gc)).lineHeight;
+	}
+
+	/**
+	 * Breaks the specified text into lines in the current font of the
+	 * specified graphics context.
+	 * 
+	 * @param gc
+	 *            Graphics context.
+	 * @param text
+	 *            Text to break.
+	 * @param availableWidth
+	 *            The available width for each line.
+	 * @return The lines. The returned array must not be modified.
+	 */
+	public static synchronized String[] getLines(GC gc, String text,
+			int availableWidth) {
+		String fontKey = getFontKey(gc);
+		String key = fontKey + "|" + availableWidth + "|" + text;
+		String[] lines = cachedLines.get(key);
+		if (lines == null) {
+			lines = breakLines(gc, getFontAdvances(gc, fontKey), text,
+					availableWidth);
+			cachedLines.put(key, lines);
+		}
+		return lines;
+	}
+
+	private static String[] breakLines(GC gc, FontAdvances advances,
+			String text, int availableWidth) {
+		int length = text.length();
+		// prefix sums of the character advances, and the positions where the
+		// text can be broken - at every whitespace and at the end
+		int[] prefixWidths = new int[length + 1];
+		int[] breaks = new int[length + 1];
+		int breakCount = 0;
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (Character.isWhitespace(c))
+				breaks[breakCount++] = i;
+			prefixWidths[i + 1] = prefixWidths[i] + advances.getAdvance(gc, c);
+		}
+		breaks[breakCount++] = length;
+
+		List<String> lines = new ArrayList<String>();
+		int location = 0;
+		int firstBreak = 0;
+		while (true) {
+			// skip whitespaces
+			while ((location < length)
+					&& Character.isWhitespace(text.charAt(location))) {
+				location++;
+			}
+			if (location == length)
+				break;
+			while (breaks[firstBreak] <= location) {
+				firstBreak++;
+			}
+
+			// find the last break that leaves the line narrower than the
+			// available width. If there is none, the first word is put on its
+			// own line.
+			int lineStartWidth = prefixWidths[location];
+			int low = firstBreak;
+			int high = breakCount - 1;
+			int lineBreak = breaks[firstBreak];
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (prefixWidths[breaks[mid]] - lineStartWidth < availableWidth) {
+					lineBreak = breaks[mid];
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+
+			lines.add(text.substring(location, lineBreak));
+			location = lineBreak;
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.art;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.swt.graphics.*;
+import org.pushingpixels.granite.BackendConnector;
+import org.pushingpixels.granite.backend.*;
+
+/**
+ * Shared album art cache for the overview cards and the details window. Has
+ * two tiers:
+ * 
+ * <ul>
+ * <li>Decoded tier - {@link ImageData} already scaled to the display size, on
+ * the Java heap</li>
+ * <li>Compressed tier - the original JPEG bytes, in direct (off-heap) buffers
+ * or in the mapped pages of the pack file</li>
+ * </ul>
+ * 
+ * Album art goes through a staged pipeline. It is downloaded through the
+ * {@link FetchScheduler}, decoded and scaled on a pool with one thread per
+ * processor, and turned into native images by the {@link ImageUploadQueue}.
+ * Concurrent requests for the same album art share one download and one
+ * decode. A request holds a thread of a bounded load pool while it waits for
+ * its download and its decode. The pool picks the most urgent waiting request
+ * every time a thread frees up, and its size can be changed with the
+ * <code>granite.art.maxLoads</code> system property (default 8). Each tier has
+ * its own byte budget and evicts the least recently used entries once it goes
+ * over the budget. The budgets can be changed with the
+ * <code>granite.art.decodedBudget</code> and
+ * <code>granite.art.compressedBudget</code> system properties.
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class AlbumArtCache {
+	/**
+	 * The shared cache instance.
+	 */
+	private static AlbumArtCache instance;
+
+	/**
+	 * The decoded tier, keyed by ASIN, art size and display size.
+	 */
+	private Tier<ImageData> decodedTier;
+
+	/**
+	 * The compressed tier, keyed by ASIN and art size.
+	 */
+	private Tier<ByteBuffer> compressedTier;
+
+	/**
+	 * In-flight decodes, keyed as the decoded tier.
+	 */
+	private SingleFlight<ImageData> decodedFlights;
+
+	/**
+	 * Runs the in-flight decodes, at most a fixed number at a time. The
+	 * scheduler evaluates the current priorities of the waiting decodes when
+	 * it picks the next one, so that a request that has become urgent while
+	 * waiting is started first.
+	 */
+	private FetchScheduler loaders;
+
+	/**
+	 * The key of the in-flight decodes in {@link #loaders}.
+	 */
+	private static final String LOADS = "art loads";
+
+	/**
+	 * In-flight downloads, keyed as the compressed tier.
+	 */
+	private SingleFlight<ByteBuffer> compressedFlights;
+
+	/**
+	 * Runs the CPU-bound stages - decoding and scaling. Has one thread per
+	 * processor.
+	 */
+	private ExecutorService decoders;
+
+	/**
+	 * The statistics of the decoding stage.
+	 */
+	private StageStats decodeStats;
+
+	/**
+	 * The statistics of the scaling stage.
+	 */
+	private StageStats scaleStats;
+
+	/**
+	 * A single cache tier with LRU eviction and a byte budget.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private static abstract class Tier<V> {
+		private String name;
+
+		private long budget;
+
+		private long usedBytes;
+
+		private LinkedHashMap<String, V> entries;
+
+		private int hitCount;
+
+		private int missCount;
+
+		private int evictionCount;
+
+		Tier(String name, long budget) {
+			this.name = name;
+			this.budget = budget;
+			this.usedBytes = 0;
+			this.entries = new LinkedHashMap<String, V>(16, 0.75f, true);
+		}
+
+		abstract long sizeOf(V value);
+
+		synchronized V get(String key) {
+			V value = this.entries.get(key);
+			if (value != null)
+				this.hitCount++;
+			else
+				this.missCount++;
+			return value;
+		}
+
+		synchronized void put(String key, V value) {
+			long size = this.sizeOf(value);
+			if (size > this.budget)
+				return;
+			V old = this.entries.put(key, value);
+			if (old != null)
+				this.usedBytes -= this.sizeOf(old);
+			this.usedBytes += size;
+
+			Iterator<Map.Entry<String, V>> it = this.entries.entrySet()
+					.iterator();
+			while ((this.usedBytes > this.budget) && it.hasNext()) {
+				Map.Entry<String, V> eldest = it.next();
+				it.remove();
+				this.usedBytes -= this.sizeOf(eldest.getValue());
+				this.evictionCount++;
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return this.name + ": " + this.entries.size() + " entries, "
+					+ this.usedBytes + "/" + this.budget + " bytes, "
+					+ this.hitCount + " hits, " + this.missCount + " misses, "
+					+ this.evictionCount + " evictions";
+		}
+	}
+
+	/**
+	 * Returns the shared cache.
+	 * 
+	 * @return The shared cache.
+	 */
+	public static synchronized AlbumArtCache getDefault() {
+		if (instance == null) {
+			instance = new AlbumArtCache(Long.getLong(
+					"granite.art.decodedBudget", 16 * 1024 * 1024), Long
+					.getLong("granite.art.compressedBudget", 8 * 1024 * 1024),
+					Integer.getInteger("granite.art.maxLoads", 8));
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param decodedBudget
+	 *            The byte budget of the decoded tier.
+	 * @param compressedBudget
+	 *            The byte budget of the compressed tier.
+	 * @param maxLoads
+	 *            The maximal number of requests that wait for their download
+	 *            and decode at the same time.
+	 */
+	public AlbumArtCache(long decodedBudget, long compressedBudget,
+			int maxLoads) {
+		this.decodedTier = new Tier<ImageData>("Decoded", decodedBudget) {
+			@Override
+			long sizeOf(ImageData value) {
+				return value.data.length
+						+ ((value.alphaData != null) ? value.alphaData.length
+								: 0);
+			}
+		};
+		this.compressedTier = new Tier<ByteBuffer>("Compressed",
+				compressedBudget) {
+			@Override
+			long sizeOf(ByteBuffer value) {
+				return value.capacity();
+			}
+		};
+		this.loaders = new FetchScheduler(maxLoads);
+		this.decodedFlights = new SingleFlight<ImageData>(this.loaders
+				.getExecutor(LOADS));
+		this.decoders = Executors.newFixedThreadPool(Runtime.getRuntime()
+				.availableProcessors(), new ThreadFactory() {
+			private int counter = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Granite Decoder " + (counter++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.decodeStats = new StageStats("decode");
+		this.scaleStats = new StageStats("scale");
+		this.compressedFlights = new SingleFlight<ByteBuffer>(FetchScheduler
+				.getDefault().getExecutor(FetchScheduler.AMAZON_IMAGES_HOST));
+	}
+
+	/**
+	 * Returns the overview album art, scaled to fit the specified dimension.
+	 * 
+	 * @param asin
+	 *            Album ASIN.
+	 * @param maxDim
+	 *            The maximal width and height of the returned image data.
+	 * @return The album art.
+	 * @throws Exception
+	 *             If the album art could not be loaded.
+	 */
+	public ImageData getOverviewArt(String asin, int maxDim) throws Exception {
+		return this.getArtAsync(asin, false, maxDim, FetchPriority.URGENT)
+				.await();
+	}
+
+	/**
+	 * Returns the large album art, scaled to fit the specified dimension.
+	 * 
+	 * @param asin
+	 *            Album ASIN.
+	 * @param maxDim
+	 *            The maximal width and height of the returned image data.
+	 * @return The album art.
+	 * @throws Exception
+	 *             If the album art could not be loaded.
+	 */
+	public ImageData getLargeArt(String asin, int maxDim) throws Exception {
+		return this.getArtAsync(asin, true, maxDim, FetchPriority.URGENT)
+				.await();
+	}
+
+	/**
+	 * Returns the overview album art if it has already been decoded at the
+	 * specified dimension. Never starts a download.
+	 * 
+	 * @param asin
+	 *            Album ASIN.
+	 * @param maxDim
+	 *            The maximal width and height of the returned image data.
+	 * @return The album art, or <code>null</code> if it is not in the decoded
+	 *         tier.
+	 */
+	public ImageData getCachedOverviewArt(String asin, int maxDim) {
+		return this.decodedTier.get(asin + ".M@" + maxDim);
+	}
+
+	/**
+	 * Requests the overview album art, scaled to fit the specified dimension.
+	 * Concurrent requests for the same art share one download and one decode,
+	 * and the download runs with the most urgent priority of the requests.
+	 * 
+	 * @param asin
+	 *            Album ASIN.
+	 * @param maxDim
+	 *            The maximal width and height of the returned image data.
+	 * @param priority
+	 *            The priority of the download.
+	 * @return The handle for the album art.
+	 */
+	public FlightHandle<ImageData> getOverviewArtAsync(String asin,
+			int maxDim, FetchPriority priority) {
+		return this.getArtAsync(asin, false, maxDim, priority);
+	}
+
+	/**
+	 * Requests the large album art, scaled to fit the specified dimension.
+	 * Concurrent requests for the same art share one download and one decode,
+	 * and the download runs with the most urgent priority of the requests.
+	 * 
+	 * @param asin
+	 *            Album ASIN.
+	 * @param maxDim
+	 *            The maximal width and height of the returned image data.
+	 * @param priority
+	 *            The priority of the download.
+	 * @return The handle for the album art.
+	 */
+	public FlightHandle<ImageData> getLargeArtAsync(String asin, int maxDim,
+			FetchPriority priority) {
+		return this.getArtAsync(asin, true, maxDim, priority);
+	}
+
+	private FlightHandle<ImageData> getArtAsync(final String asin,
+			final boolean isLarge, final int maxDim,
+			final FetchPriority priority) {
+		final String compressedKey = asin + (isLarge ? ".L" : ".M");
+		final String decodedKey = compressedKey + "@" + maxDim;
+		ImageData cached = this.decodedTier.get(decodedKey);
+		if (cached != null)
+			return FlightHandle.completed(cached);
+
+		return this.decodedFlights.submit(decodedKey,
+				new Callable<ImageData>() {
+					@Override
+					public ImageData call() throws Exception {
+						final ByteBuffer compressed = getCompressed(
+								compressedKey, asin, isLarge, priority);
+						final ImageData decoded = runStage(decodeStats,
+								new Callable<ImageData>() {
+									@Override
+									public ImageData call() {
+										return decode(compressed, maxDim);
+									}
+								});
+						ImageData scaled = runStage(scaleStats,
+								new Callable<ImageData>() {
+									@Override
+									public ImageData call() {
+										return ImageScaler.scaleToFit(decoded,
+												maxDim);
+									}
+								});
+						decodedTier.put(decodedKey, scaled);
+						return scaled;
+					}
+				});
+	}
+
+	/**
+	 * Runs the specified work on the decoding pool and waits for it. If the
+	 * waiting thread is interrupted, the work is cancelled.
+	 */
+	private <T> T runStage(final StageStats stats, final Callable<T> work)
+			throws Exception {
+		final long enqueueTime = stats.enqueued();
+		final AtomicBoolean isStarted = new AtomicBoolean(false);
+		Future<T> result = this.decoders.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				isStarted.set(true);
+				stats.started();
+				try {
+					return work.call();
+				} finally {
+					stats.finished(enqueueTime);
+				}
+			}
+		});
+		try {
+			return result.get();
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw ee;
+		} catch (InterruptedException ie) {
+			if (result.cancel(true) && !isStarted.get())
+				stats.dropped();
+			throw ie;
+		}
+	}
+
+	/**
+	 * Returns the compressed album art, sharing the download with concurrent
+	 * requests for the same album art.
+	 */
+	private ByteBuffer getCompressed(final String compressedKey,
+			final String asin, final boolean isLarge, FetchPriority priority)
+			throws Exception {
+		ByteBuffer compressed = this.compressedTier.get(compressedKey);
+		if (compressed != null)
+			return compressed;
+
+		FlightHandle<ByteBuffer> download = this.compressedFlights.submit(
+				compressedKey, new Callable<ByteBuffer>() {
+					@Override
+					public ByteBuffer call() throws Exception {
+						InputStream in = isLarge ? BackendConnector
+								.getLargeAlbumArt(asin) : BackendConnector
+								.getAlbumArt(asin);
+						ByteBuffer result = toDirectBuffer(in);
+						compressedTier.put(compressedKey, result);
+						return result;
+					}
+				}, priority);
+		try {
+			return download.await();
+		} finally {
+			// detach from the download if this request has been cancelled
+			download.cancel(true);
+		}
+	}
+
+	/**
+	 * Returns the content of the specified stream as a buffer that can be
+	 * kept in the compressed tier. The art that is read from the pack file is
+	 * already a mapped buffer and is kept as is, and only the downloaded art
+	 * is copied.
+	 */
+	private static ByteBuffer toDirectBuffer(InputStream in) throws Exception {
+		try {
+			if (in instanceof ByteBufferInputStream)
+				return ((ByteBufferInputStream) in).getRemaining();
+
+			byte[] bytes = new byte[in.available() > 0 ? in.available()
+					: 16 * 1024];
+			int length = 0;
+			int count;
+			while ((count = in.read(bytes, length, bytes.length - length)) >= 0) {
+				length += count;
+				if (length == bytes.length) {
+					bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+				}
+			}
+			ByteBuffer result = ByteBuffer.allocateDirect(length);
+			result.put(bytes, 0, length);
+			result.flip();
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Decodes the specified album art at the reduced resolution closest to the
+	 * specified dimension. Falls back to the full resolution decoding if the
+	 * reduced resolution decoding is not available for the image format.
+	 */
+	private static ImageData decode(ByteBuffer compressed, int maxDim) {
+		try {
+			ImageData reduced = ReducedImageDecoder.decode(
+					new ByteBufferInputStream(compressed.duplicate()), maxDim);
+			if (reduced != null)
+				return reduced;
+		} catch (CancellationException ce) {
+			// the request has been cancelled, no need for the fallback
+			throw ce;
+		} catch (Exception exc) {
+			// such as JPEG color spaces that are not supported by the image
+			// readers
+		}
+		ImageLoader loader = new ImageLoader();
+		return loader.load(new ByteBufferInputStream(compressed.duplicate()))[0];
+	}
+
+	/**
+	 * Returns the statistics of the download stage.
+	 * 
+	 * @return The statistics of the download stage.
+	 */
+	public StageStats getFetchStats() {
+		return FetchScheduler.getDefault().getStats();
+	}
+
+	/**
+	 * Returns the statistics of the decoding stage.
+	 * 
+	 * @return The statistics of the decoding stage.
+	 */
+	public StageStats getDecodeStats() {
+		return this.decodeStats;
+	}
+
+	/**
+	 * Returns the statistics of the scaling stage.
+	 * 
+	 * @return The statistics of the scaling stage.
+	 */
+	public StageStats getScaleStats() {
+		return this.scaleStats;
+	}
+
+	@Override
+	public String toString() {
+		return "Album art cache\n  " + this.decodedTier + "\n  "
+				+ this.compressedTier + "\n  "
+				+ this.decodedFlights.getJoinedCount() + " decodes and "
+				+ this.compressedFlights.getJoinedCount()
+				+ " downloads shared\n  " + this.getFetchStats() + "\n  "
+				+ this.decodeStats + "\n  " + this.scaleStats + "\n  "
+				+ ImageUploadQueue.getDefault().getStats();
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.art;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import org.eclipse.swt.graphics.*;
+
+/**
+ * Scales image data with area averaging. The scaling works directly on the
+ * pixel arrays, so it does not need the display and can run on any thread.
+ * Only the final native image needs to be created on the UI thread. The
+ * scaling is separable - a horizontal pass is followed by a vertical pass -
+ * and large images are split among several worker threads.
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class ImageScaler {
+	/**
+	 * Images with at least this many source pixels are scaled on several
+	 * threads.
+	 */
+	private static final int PARALLEL_THRESHOLD = 512 * 512;
+
+	/**
+	 * Worker threads for scaling large images. Created on first use.
+	 */
+	private static ExecutorService workers;
+
+	/**
+	 * Area averaging weights along a single axis.
+	 */
+	private static class Weights {
+		/**
+		 * The first source index for every target index.
+		 */
+		int[] starts;
+
+		/**
+		 * The number of source indexes for every target index.
+		 */
+		int[] counts;
+
+		/**
+		 * The offset of the first weight in {@link #weights} for every target
+		 * index.
+		 */
+		int[] offsets;
+
+		/**
+		 * The normalized weights of the source indexes.
+		 */
+		float[] weights;
+
+		Weights(int sourceLength, int targetLength) {
+			float scale = (float) sourceLength / (float) targetLength;
+			this.starts = new int[targetLength];
+			this.counts = new int[targetLength];
+			this.offsets = new int[targetLength];
+			List<Float> allWeights = new ArrayList<Float>();
+			for (int i = 0; i < targetLength; i++) {
+				// the target pixel covers [left, right) in the source
+				float left = i * scale;
+				float right = Math.min(sourceLength, (i + 1) * scale);
+				int start = Math.min(sourceLength - 1, (int) left);
+				int end = Math.max(start + 1, Math.min(sourceLength,
+						(int) Math.ceil(right)));
+				this.starts[i] = start;
+				this.counts[i] = end - start;
+				this.offsets[i] = allWeights.size();
+				float total = 0.0f;
+				for (int j = start; j < end; j++) {
+					float weight = Math.min(j + 1, right) - Math.max(j, left);
+					allWeights.add(weight);
+					total += weight;
+				}
+				for (int j = this.offsets[i]; j < allWeights.size(); j++) {
+					allWeights.set(j, (total > 0.0f) ? allWeights.get(j)
+							/ total : 1.0f / this.counts[i]);
+				}
+			}
+			this.weights = new float[allWeights.size()];
+			for (int i = 0; i < this.weights.length; i++) {
+				this.weights[i] = allWeights.get(i);
+			}
+		}
+	}
+
+	/**
+	 * Scales the specified image data to fit in a square of the specified
+	 * dimension, keeping its aspect ratio. Image data that already fits is
+	 * returned as is.
+	 * 
+	 * @param data
+	 *            Image data.
+	 * @param maxDim
+	 *            The maximal width and height of the result.
+	 * @return The scaled image data.
+	 */
+	public static ImageData scaleToFit(ImageData data, int maxDim) {
+		float vFactor = (float) maxDim / (float) data.height;
+		float hFactor = (float) maxDim / (float) data.width;
+		float factor = Math.min(1.0f, Math.min(vFactor, hFactor));
+		if (factor >= 1.0f)
+			return data;
+
+		return scale(data, Math.max(1, (int) (factor * data.width)), Math.max(
+				1, (int) (factor * data.height)));
+	}
+
+	/**
+	 * Scales the specified image data to the specified size. The result is a
+	 * 24-bit direct image data. The transparency of the source is kept as
+	 * alpha data.
+	 * 
+	 * @param source
+	 *            Image data.
+	 * @param targetWidth
+	 *            The width of the result.
+	 * @param targetHeight
+	 *            The height of the result.
+	 * @return The scaled image data.
+	 */
+	public static ImageData scale(ImageData source, final int targetWidth,
+			final int targetHeight) {
+		final int sourceWidth = source.width;
+		final int sourceHeight = source.height;
+		final boolean hasAlpha = (source.alphaData != null)
+				|| (source.transparentPixel != -1);
+		final int channels = hasAlpha ? 4 : 3;
+
+		final int[] sourcePixels = readPixels(source);
+		final Weights horizontal = new Weights(sourceWidth, targetWidth);
+		final Weights vertical = new Weights(sourceHeight, targetHeight);
+		final float[] intermediate = new float[sourceHeight * targetWidth
+				* channels];
+		final int[] targetPixels = new int[targetWidth * targetHeight];
+
+		boolean isParallel = (sourceWidth * sourceHeight >= PARALLEL_THRESHOLD)
+				&& (Runtime.getRuntime().availableProcessors() > 1);
+		int taskCount = isParallel ? Runtime.getRuntime()
+				.availableProcessors() : 1;
+
+		// horizontal pass - from source rows to intermediate rows
+		List<Callable<Void>> horizontalTasks = new ArrayList<Callable<Void>>();
+		for (int task = 0; task < taskCount; task++) {
+			final int fromRow = sourceHeight * task / taskCount;
+			final int toRow = sourceHeight * (task + 1) / taskCount;
+			horizontalTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int y = fromRow; y < toRow; y++) {
+						checkInterrupted();
+						int sourceRow = y * sourceWidth;
+						int intermediateRow = y * targetWidth * channels;
+						for (int x = 0; x < targetWidth; x++) {
+							float a = 0.0f, r = 0.0f, g = 0.0f, b = 0.0f;
+							int start = horizontal.starts[x];
+							int offset = horizontal.offsets[x];
+							for (int i = 0; i < horizontal.counts[x]; i++) {
+								int pixel = sourcePixels[sourceRow + start + i];
+								float weight = horizontal.weights[offset + i];
+								a += weight * (pixel >>> 24);
+								r += weight * ((pixel >> 16) & 0xFF);
+								g += weight * ((pixel >> 8) & 0xFF);
+								b += weight * (pixel & 0xFF);
+							}
+							int index = intermediateRow + x * channels;
+							intermediate[index] = r;
+							intermediate[index + 1] = g;
+							intermediate[index + 2] = b;
+							if (hasAlpha)
+								intermediate[index + 3] = a;
+						}
+					}
+					return null;
+				}
+			});
+		}
+		run(horizontalTasks);
+
+		// vertical pass - from intermediate columns to target pixels
+		List<Callable<Void>> verticalTasks = new ArrayList<Callable<Void>>();
+		for (int task = 0; task < taskCount; task++) {
+			final int fromRow = targetHeight * task / taskCount;
+			final int toRow = targetHeight * (task + 1) / taskCount;
+			verticalTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					int rowLength = targetWidth * channels;
+					for (int y = fromRow; y < toRow; y++) {
+						checkInterrupted();
+						int start = vertical.starts[y];
+						int offset = vertical.offsets[y];
+						for (int x = 0; x < targetWidth; x++) {
+							float a = 0.0f, r = 0.0f, g = 0.0f, b = 0.0f;
+							int index = start * rowLength + x * channels;
+							for (int i = 0; i < vertical.counts[y]; i++) {
+								float weight = vertical.weights[offset + i];
+								r += weight * intermediate[index];
+								g += weight * intermediate[index + 1];
+								b += weight * intermediate[index + 2];
+								if (hasAlpha)
+									a += weight * intermediate[index + 3];
+								index += rowLength;
+							}
+							targetPixels[y * targetWidth + x] = (clamp(a) << 24)
+									| (clamp(r) << 16)
+									| (clamp(g) << 8)
+									| clamp(b);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		run(verticalTasks);
+
+		ImageData result = new ImageData(targetWidth, targetHeight, 24,
+				new PaletteData(0xFF0000, 0xFF00, 0xFF));
+		int[] row = new int[targetWidth];
+		byte[] alphaRow = hasAlpha ? new byte[targetWidth] : null;
+		for (int y = 0; y < targetHeight; y++) {
+			for (int x = 0; x < targetWidth; x++) {
+				int pixel = targetPixels[y * targetWidth + x];
+				row[x] = pixel & 0xFFFFFF;
+				if (hasAlpha)
+					alphaRow[x] = (byte) (pixel >>> 24);
+			}
+			result.setPixels(0, y, targetWidth, row, 0);
+			if (hasAlpha)
+				result.setAlphas(0, y, targetWidth, alphaRow, 0);
+		}
+		result.alpha = source.alpha;
+		return result;
+	}
+
+	private static int clamp(float value) {
+		int result = Math.round(value);
+		return (result < 0) ? 0 : ((result > 255) ? 255 : result);
+	}
+
+	/**
+	 * Reads the pixels of the specified image data as ARGB values.
+	 */
+	private static int[] readPixels(ImageData data) {
+		int width = data.width;
+		int height = data.height;
+		int[] result = new int[width * height];
+		int[] row = new int[width];
+		byte[] alphaRow = (data.alphaData != null) ? new byte[width] : null;
+
+		PaletteData palette = data.palette;
+		int[] indexedColors = null;
+		int redShift = 0, greenShift = 0, blueShift = 0;
+		if (palette.isDirect) {
+			redShift = getShift(palette.redMask);
+			greenShift = getShift(palette.greenMask);
+			blueShift = getShift(palette.blueMask);
+		} else {
+			RGB[] colors = palette.colors;
+			indexedColors = new int[colors.length];
+			for (int i = 0; i < colors.length; i++) {
+				indexedColors[i] = (colors[i].red << 16)
+						| (colors[i].green << 8) | colors[i].blue;
+			}
+		}
+
+		for (int y = 0; y < height; y++) {
+			data.getPixels(0, y, width, row, 0);
+			if (alphaRow != null)
+				data.getAlphas(0, y, width, alphaRow, 0);
+			for (int x = 0; x < width; x++) {
+				int pixel = row[x];
+				int rgb;
+				if (indexedColors != null) {
+					rgb = (pixel < indexedColors.length) ? indexedColors[pixel]
+							: 0;
+				} else {
+					rgb = (shift(pixel & palette.redMask, redShift) << 16)
+							| (shift(pixel & palette.greenMask, greenShift) << 8)
+							| shift(pixel & palette.blueMask, blueShift);
+				}
+				int alpha = 255;
+				if (alphaRow != null)
+					alpha = alphaRow[x] & 0xFF;
+				else if (pixel == data.transparentPixel)
+					alpha = 0;
+				result[y * width + x] = (alpha << 24) | rgb;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the shift that moves the top bit of the specified mask to the
+	 * top bit of a byte, in the same convention as {@link PaletteData}.
+	 */
+	private static int getShift(int mask) {
+		for (int i = 31; i >= 0; i--) {
+			if (((mask >> i) & 0x1) != 0)
+				return 7 - i;
+		}
+		return 32;
+	}
+
+	private static int shift(int value, int shift) {
+		return ((shift < 0) ? (value >>> -shift) : (value << shift)) & 0xFF;
+	}
+
+	/**
+	 * Stops the scaling once the scaling thread has been interrupted, such as
+	 * when the album art request has been cancelled.
+	 */
+	private static void checkInterrupted() {
+		if (Thread.currentThread().isInterrupted())
+			throw new CancellationException("Interrupted while scaling");
+	}
+
+	private static void run(List<Callable<Void>> tasks) {
+		if (tasks.size() == 1) {
+			try {
+				tasks.get(0).call();
+			} catch (RuntimeException re) {
+				throw re;
+			} catch (Exception exc) {
+				throw new IllegalStateException(exc);
+			}
+			return;
+		}
+		try {
+			for (Future<Void> result : getWorkers().invokeAll(tasks)) {
+				result.get();
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while scaling");
+		} catch (ExecutionException ee) {
+			throw new IllegalStateException(ee.getCause());
+		}
+	}
+
+	private static synchronized ExecutorService getWorkers() {
+		if (workers == null) {
+			workers = Executors.newFixedThreadPool(Runtime.getRuntime()
+					.availableProcessors(), new ThreadFactory() {
+				private int counter = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Granite Scaler "
+							+ (counter++));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return workers;
+	}
+}
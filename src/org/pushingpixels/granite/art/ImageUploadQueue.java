@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.art;
+
+import java.util.LinkedList;
+import java.util.concurrent.*;
+
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.widgets.Display;
+import org.pushingpixels.granite.FrameScheduler;
+import org.pushingpixels.granite.ResourceTracker;
+import org.pushingpixels.granite.backend.StageStats;
+
+/**
+ * Creates native images from decoded image data on the UI thread. The
+ * queued image data is uploaded by a {@link FrameScheduler} task, at most
+ * <code>granite.upload.maxPerFrame</code> images (default 4) and at most
+ * <code>granite.upload.frameBudget</code> milliseconds (default 4) per frame,
+ * so that a burst of decoded images is spread over several frames instead of
+ * stalling one.
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class ImageUploadQueue {
+	/**
+	 * The shared queue instance.
+	 */
+	private static ImageUploadQueue instance;
+
+	/**
+	 * Runs the upload steps.
+	 */
+	private FrameScheduler frameScheduler;
+
+	/**
+	 * The display that owns the uploaded images.
+	 */
+	private Display display;
+
+	/**
+	 * The maximal number of images uploaded in a single step.
+	 */
+	private int maxPerFrame;
+
+	/**
+	 * The time budget of a single step.
+	 */
+	private long frameBudgetNanos;
+
+	/**
+	 * The queued uploads, in the order they were queued.
+	 */
+	private LinkedList<Upload> queue;
+
+	/**
+	 * Indicates whether the {@link #step} has been added to the
+	 * {@link #frameScheduler}.
+	 */
+	private boolean isStepScheduled;
+
+	/**
+	 * The statistics of the uploads.
+	 */
+	private StageStats stats;
+
+	/**
+	 * Runs a single step on every frame.
+	 */
+	private FrameScheduler.FrameTask step = new FrameScheduler.FrameTask() {
+		@Override
+		public boolean runFrame(long frameTime) {
+			return uploadQueued();
+		}
+	};
+
+	/**
+	 * Is called on the UI thread once the native image has been created.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	public static interface UploadCallback {
+		/**
+		 * Is called on the UI thread once the native image has been created.
+		 * The callback takes ownership of the image and must dispose it if it
+		 * is no longer needed.
+		 * 
+		 * @param image
+		 *            The created image.
+		 */
+		public void uploaded(Image image);
+	}
+
+	/**
+	 * A single queued upload.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private class Upload extends FutureTask<Image> {
+		long enqueueTime;
+
+		Upload(final ImageData imageData, final UploadCallback callback) {
+			super(new Callable<Image>() {
+				@Override
+				public Image call() {
+					Image image = ResourceTracker.track(new Image(display,
+							imageData));
+					if (callback != null) {
+						try {
+							callback.uploaded(image);
+						} catch (RuntimeException re) {
+							// the callback has failed before taking
+							// ownership of the image
+							ResourceTracker.dispose(image);
+							throw re;
+						}
+					}
+					return image;
+				}
+			});
+			this.enqueueTime = stats.enqueued();
+		}
+	}
+
+	/**
+	 * Returns the shared upload queue.
+	 * 
+	 * @return The shared upload queue.
+	 */
+	public static synchronized ImageUploadQueue getDefault() {
+		if (instance == null) {
+			instance = new ImageUploadQueue(FrameScheduler.getDefault(),
+					Integer.getInteger("granite.upload.maxPerFrame", 4),
+					Integer.getInteger("granite.upload.frameBudget", 4));
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new upload queue.
+	 * 
+	 * @param frameScheduler
+	 *            Runs the upload steps on the display that owns the uploaded
+	 *            images.
+	 * @param maxPerFrame
+	 *            The maximal number of images uploaded in a single frame.
+	 * @param frameBudgetMillis
+	 *            The time budget of a single frame, in milliseconds.
+	 */
+	public ImageUploadQueue(FrameScheduler frameScheduler, int maxPerFrame,
+			int frameBudgetMillis) {
+		this.frameScheduler = frameScheduler;
+		this.display = frameScheduler.getDisplay();
+		this.maxPerFrame = maxPerFrame;
+		this.frameBudgetNanos = frameBudgetMillis * 1000000L;
+		this.queue = new LinkedList<Upload>();
+		this.stats = new StageStats("upload");
+	}
+
+	/**
+	 * Queues the specified image data for upload. Can be called on any thread.
+	 * The returned future completes on the UI thread after the callback has
+	 * been called. Cancelling the future before the upload step reaches it
+	 * skips the upload. The returned future is already cancelled if the
+	 * display has been disposed. If there is no callback, the caller of
+	 * {@link Future#get()} owns the created image.
+	 * 
+	 * @param imageData
+	 *            Image data.
+	 * @param callback
+	 *            Optional callback to be called with the created image.
+	 * @return The future of the created image.
+	 */
+	public Future<Image> upload(ImageData imageData, UploadCallback callback) {
+		Upload upload = new Upload(imageData, callback);
+		if (this.display.isDisposed()) {
+			// no upload step runs once the display is disposed
+			upload.cancel(false);
+			this.stats.dropped();
+			return upload;
+		}
+		synchronized (this) {
+			this.queue.add(upload);
+			if (!this.isStepScheduled) {
+				this.isStepScheduled = true;
+				this.frameScheduler.addFrameTask(this.step);
+			}
+		}
+		return upload;
+	}
+
+	/**
+	 * Uploads the queued image data within the per-frame limits.
+	 * 
+	 * @return <code>true</code> if there is still queued image data.
+	 */
+	private boolean uploadQueued() {
+		long start = System.nanoTime();
+		int uploaded = 0;
+		while (true) {
+			Upload upload;
+			synchronized (this) {
+				if ((uploaded > 0)
+						&& ((uploaded >= this.maxPerFrame) || (System
+								.nanoTime()
+								- start >= this.frameBudgetNanos))) {
+					return true;
+				}
+				upload = this.queue.poll();
+				if (upload == null) {
+					this.isStepScheduled = false;
+					return false;
+				}
+			}
+			if (upload.isCancelled()) {
+				this.stats.dropped();
+				continue;
+			}
+			this.stats.started();
+			upload.run();
+			this.stats.finished(upload.enqueueTime);
+			uploaded++;
+		}
+	}
+
+	/**
+	 * Returns the statistics of the uploads.
+	 * 
+	 * @return The statistics of the uploads.
+	 */
+	public StageStats getStats() {
+		return this.stats;
+	}
+
+	@Override
+	public String toString() {
+		return this.stats.toString();
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.art;
+
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.eclipse.swt.graphics.*;
+
+/**
+ * Decodes images at a reduced resolution. The image size is read from the
+ * image header, and the image is then decoded with the largest power-of-two
+ * subsampling that keeps it at or above the requested dimension. The
+ * full-size bitmap is never allocated for images that are much larger than
+ * needed.
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class ReducedImageDecoder {
+	/**
+	 * Aborts the decoding once the decoding thread has been interrupted, such
+	 * as when the album art request has been cancelled. The image reader
+	 * reports its progress from the decoding thread.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private static class AbortOnInterrupt implements IIOReadProgressListener {
+		@Override
+		public void imageProgress(ImageReader source, float percentageDone) {
+			if (Thread.currentThread().isInterrupted())
+				source.abort();
+		}
+
+		@Override
+		public void imageStarted(ImageReader source, int imageIndex) {
+		}
+
+		@Override
+		public void imageComplete(ImageReader source) {
+		}
+
+		@Override
+		public void readAborted(ImageReader source) {
+		}
+
+		@Override
+		public void sequenceStarted(ImageReader source, int minIndex) {
+		}
+
+		@Override
+		public void sequenceComplete(ImageReader source) {
+		}
+
+		@Override
+		public void thumbnailStarted(ImageReader source, int imageIndex,
+				int thumbnailIndex) {
+		}
+
+		@Override
+		public void thumbnailProgress(ImageReader source, float percentageDone) {
+		}
+
+		@Override
+		public void thumbnailComplete(ImageReader source) {
+		}
+	}
+
+	/**
+	 * Decodes the specified image so that it is at or above the specified
+	 * dimension. The caller is expected to scale the result to the exact size.
+	 * 
+	 * @param in
+	 *            The encoded image. Is not closed by this method.
+	 * @param minDim
+	 *            The minimal dimension of the decoded image. The larger of the
+	 *            width and the height is kept at or above this value.
+	 * @return The decoded image data, or <code>null</code> if there is no
+	 *         image reader for the image format.
+	 * @throws Exception
+	 *             If the image could not be decoded.
+	 */
+	public static ImageData decode(InputStream in, int minDim) throws Exception {
+		ImageInputStream imageIn = new MemoryCacheImageInputStream(in);
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(imageIn);
+			if (!readers.hasNext())
+				return null;
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(imageIn, true, true);
+				int largerDim = Math.max(reader.getWidth(0), reader
+						.getHeight(0));
+				int subsampling = 1;
+				while (largerDim / (2 * subsampling) >= minDim) {
+					subsampling *= 2;
+				}
+
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				reader.addIIOReadProgressListener(new AbortOnInterrupt());
+				BufferedImage image = reader.read(0, param);
+				if (Thread.currentThread().isInterrupted())
+					throw new CancellationException("Interrupted while decoding");
+				return toImageData(image);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			imageIn.close();
+		}
+	}
+
+	/**
+	 * Converts the specified buffered image to a 24-bit direct image data,
+	 * keeping its alpha channel as alpha data.
+	 */
+	private static ImageData toImageData(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		boolean hasAlpha = image.getColorModel().hasAlpha();
+
+		ImageData result = new ImageData(width, height, 24, new PaletteData(
+				0xFF0000, 0xFF00, 0xFF));
+		int[] row = new int[width];
+		byte[] alphaRow = hasAlpha ? new byte[width] : null;
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++) {
+				if (hasAlpha)
+					alphaRow[x] = (byte) (row[x] >>> 24);
+				row[x] &= 0xFFFFFF;
+			}
+			result.setPixels(0, y, width, row, 0);
+			if (hasAlpha)
+				result.setAlphas(0, y, width, alphaRow, 0);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.backend;
+
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The connections of a single cancellable request. A request runs with its
+ * scope bound to the running thread, and {@link HttpTransport} registers the
+ * connections that the request opens in that scope. Aborting the scope
+ * disconnects them, so that a cancelled request stops blocking in a socket
+ * read instead of running until the read timeout. Interrupting the thread
+ * alone does not unblock a socket read.
+ * 
+ * @author Kirill Grouchnikov
+ */
+class AbortScope {
+	/**
+	 * The scope of the request that runs on the current thread.
+	 */
+	private static final ThreadLocal<AbortScope> current = new ThreadLocal<AbortScope>();
+
+	/**
+	 * The open connections of the request.
+	 */
+	private Set<HttpURLConnection> connections;
+
+	/**
+	 * Indicates whether this scope has been aborted.
+	 */
+	private boolean isAborted;
+
+	AbortScope() {
+		this.connections = new HashSet<HttpURLConnection>();
+		this.isAborted = false;
+	}
+
+	/**
+	 * Binds the specified scope to the current thread.
+	 * 
+	 * @param scope
+	 *            Scope. Can be <code>null</code>.
+	 * @return The previously bound scope, to be restored once the request has
+	 *         finished.
+	 */
+	static AbortScope bind(AbortScope scope) {
+		AbortScope previous = current.get();
+		if (scope == null)
+			current.remove();
+		else
+			current.set(scope);
+		return previous;
+	}
+
+	/**
+	 * Registers the specified connection in the scope bound to the current
+	 * thread.
+	 * 
+	 * @param connection
+	 *            Connection.
+	 * @return The scope that the connection has been registered in, or
+	 *         <code>null</code> if the current thread does not run a
+	 *         cancellable request.
+	 * @throws InterruptedIOException
+	 *             If the request has already been aborted.
+	 */
+	static AbortScope register(HttpURLConnection connection)
+			throws InterruptedIOException {
+		AbortScope scope = current.get();
+		if (scope == null)
+			return null;
+		synchronized (scope) {
+			if (scope.isAborted)
+				throw new InterruptedIOException("Request has been cancelled");
+			scope.connections.add(connection);
+		}
+		return scope;
+	}
+
+	/**
+	 * Removes the specified connection from this scope once it has been
+	 * closed.
+	 * 
+	 * @param connection
+	 *            Connection.
+	 */
+	synchronized void unregister(HttpURLConnection connection) {
+		this.connections.remove(connection);
+	}
+
+	/**
+	 * Disconnects the open connections of this scope and fails the
+	 * connections that are opened later. Can be called from any thread.
+	 */
+	void abort() {
+		HttpURLConnection[] toDisconnect;
+		synchronized (this) {
+			this.isAborted = true;
+			toDisconnect = this.connections
+					.toArray(new HttpURLConnection[0]);
+			this.connections.clear();
+		}
+		for (HttpURLConnection connection : toDisconnect) {
+			connection.disconnect();
+		}
+	}
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.backend;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only pack file for album art bytes. All the art images are stored as
+ * records in a single data file, and are looked up by their key (ASIN and size)
+ * in a compact in-memory index. Every read maps its own record with a
+ * {@link MappedByteBuffer}, so that a cache hit can be decoded straight from
+ * the mapped file pages with {@link ByteBufferInputStream}.
+ * 
+ * <p>
+ * Every record carries a checksum. The index is saved to a separate file
+ * every few writes and on shutdown, together with the length of the pack file
+ * it covers. On opening, the records after that length are verified and
+ * added to the index, and a partially written record (for example, after a
+ * crash) is cut off.
+ * </p>
+ * 
+ * <p>
+ * The live records are kept within a byte budget. Once the budget is
+ * exceeded, the least recently read records are evicted from the index.
+ * Evicted records and records replaced by newer ones for the same key are
+ * reclaimed by compacting the pack file once they take up too much space, so
+ * that the pack file stays under about twice the budget.
+ * </p>
+ * 
+ * <p>
+ * The location of the pack file can be changed with the
+ * <code>granite.art.dir</code> system property, and the budget with the
+ * <code>granite.art.packBudget</code> system property (default 64MB).
+ * </p>
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class AlbumArtPackFile {
+	/**
+	 * The shared pack file instance.
+	 */
+	private static AlbumArtPackFile instance;
+
+	/**
+	 * Indicates that the shared pack file could not be opened.
+	 */
+	private static boolean isUnavailable;
+
+	/**
+	 * Marks the beginning of every record.
+	 */
+	private static final int RECORD_MAGIC = 0x47415254;
+
+	/**
+	 * Marks the beginning of the index file.
+	 */
+	private static final int INDEX_MAGIC = 0x47494458;
+
+	/**
+	 * The index file is saved after this many records have been appended.
+	 */
+	private static final int INDEX_SAVE_INTERVAL = 32;
+
+	/**
+	 * The pack file is compacted when the replaced and evicted records take at
+	 * least this many bytes and at least half of the file.
+	 */
+	private static final long COMPACTION_THRESHOLD = 1024 * 1024;
+
+	/**
+	 * Location of a single record's data in the pack file.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private static class Slot {
+		long offset;
+
+		int length;
+
+		Slot(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private File packFile;
+
+	private File indexFile;
+
+	private RandomAccessFile pack;
+
+	private FileChannel channel;
+
+	/**
+	 * Maps every key to the location of its data, from the least recently
+	 * read record.
+	 */
+	private Map<String, Slot> index;
+
+	/**
+	 * The maximal number of bytes taken by the live records.
+	 */
+	private long budget;
+
+	/**
+	 * The number of bytes taken by the live records.
+	 */
+	private long liveBytes;
+
+	/**
+	 * The number of bytes taken by records that have been replaced or
+	 * evicted.
+	 */
+	private long deadBytes;
+
+	/**
+	 * After a compaction that could not replace the pack file, the next one
+	 * waits until the replaced and evicted records take this many bytes.
+	 */
+	private long compactionRetryBytes;
+
+	/**
+	 * The number of records appended since the index file was saved.
+	 */
+	private int unsavedCount;
+
+	/**
+	 * Returns the shared pack file.
+	 * 
+	 * @return The shared pack file, or <code>null</code> if it could not be
+	 *         opened.
+	 */
+	public static synchronized AlbumArtPackFile getDefault() {
+		if ((instance == null) && !isUnavailable) {
+			String dirName = System.getProperty("granite.art.dir");
+			File dir = (dirName != null) ? new File(dirName) : new File(
+					System.getProperty("user.home"), ".granite"
+							+ File.separator + "art");
+			try {
+				instance = new AlbumArtPackFile(dir, Long.getLong(
+						"granite.art.packBudget", 64 * 1024 * 1024));
+				final AlbumArtPackFile toClose = instance;
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						toClose.close();
+					}
+				});
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+				isUnavailable = true;
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Opens the pack file in the specified directory, creating it if
+	 * necessary.
+	 * 
+	 * @param directory
+	 *            The pack file directory.
+	 * @param budget
+	 *            The maximal number of bytes taken by the live records.
+	 * @throws IOException
+	 *             If the pack file could not be opened.
+	 */
+	public AlbumArtPackFile(File directory, long budget) throws IOException {
+		directory.mkdirs();
+		this.packFile = new File(directory, "art.pack");
+		this.indexFile = new File(directory, "art.idx");
+		this.budget = budget;
+		// left over by a compaction that could not delete the old pack file
+		new File(directory, "art.pack.old").delete();
+		this.open();
+		this.evictOverBudget();
+		if (this.shouldCompact()) {
+			this.compact();
+		}
+	}
+
+	private void open() throws IOException {
+		this.pack = new RandomAccessFile(this.packFile, "rw");
+		this.channel = this.pack.getChannel();
+		this.index = createIndex();
+		this.liveBytes = 0;
+		this.deadBytes = 0;
+		this.unsavedCount = 0;
+
+		long indexedLength = this.loadIndex();
+		long validLength = this.recover(indexedLength);
+		if (validLength < this.pack.length()) {
+			// cut off the partially written record
+			this.pack.setLength(validLength);
+			this.saveIndex();
+		}
+	}
+
+	/**
+	 * Loads the saved index.
+	 * 
+	 * @return The length of the pack file covered by the loaded index, or 0
+	 *         if the index file is missing or corrupt.
+	 */
+	private long loadIndex() {
+		if (!this.indexFile.exists())
+			return 0;
+		DataInputStream in = null;
+		try {
+			byte[] content = new byte[(int) this.indexFile.length()];
+			in = new DataInputStream(new FileInputStream(this.indexFile));
+			in.readFully(content);
+			if (content.length < 4)
+				return 0;
+
+			// the index content is followed by its checksum
+			CRC32 crc = new CRC32();
+			crc.update(content, 0, content.length - 4);
+			DataInputStream data = new DataInputStream(
+					new ByteArrayInputStream(content));
+			data.skip(content.length - 4);
+			if ((int) crc.getValue() != data.readInt())
+				return 0;
+
+			data = new DataInputStream(new ByteArrayInputStream(content));
+			if (data.readInt() != INDEX_MAGIC)
+				return 0;
+			long indexedLength = data.readLong();
+			if (indexedLength > this.pack.length())
+				return 0;
+			long dead = data.readLong();
+			int count = data.readInt();
+			Map<String, Slot> loaded = createIndex();
+			long live = 0;
+			for (int i = 0; i < count; i++) {
+				String key = data.readUTF();
+				long offset = data.readLong();
+				int length = data.readInt();
+				loaded.put(key, new Slot(offset, length));
+				live += length;
+			}
+			this.index = loaded;
+			this.liveBytes = live;
+			this.deadBytes = dead;
+			return indexedLength;
+		} catch (IOException ioe) {
+			this.index = createIndex();
+			this.liveBytes = 0;
+			this.deadBytes = 0;
+			return 0;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ioe) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the records after the specified position to the index.
+	 * 
+	 * @return The length of the valid part of the pack file.
+	 */
+	private long recover(long from) throws IOException {
+		long fileLength = this.pack.length();
+		long position = from;
+		ByteBuffer header = ByteBuffer.allocate(4 + 2);
+		while (position < fileLength) {
+			header.clear();
+			if (!this.readFully(header, position)
+					|| (header.getInt(0) != RECORD_MAGIC))
+				break;
+			int keyLength = header.getShort(4) & 0xFFFF;
+			ByteBuffer rest = ByteBuffer.allocate(keyLength + 4 + 4);
+			if (!this.readFully(rest, position + 6))
+				break;
+			byte[] keyBytes = new byte[keyLength];
+			rest.flip();
+			rest.get(keyBytes);
+			int length = rest.getInt();
+			int checksum = rest.getInt();
+			long dataOffset = position + 6 + keyLength + 8;
+			if ((length < 0) || (dataOffset + length > fileLength))
+				break;
+
+			ByteBuffer data = ByteBuffer.allocate(length);
+			if (!this.readFully(data, dataOffset))
+				break;
+			CRC32 crc = new CRC32();
+			crc.update(data.array(), 0, length);
+			if ((int) crc.getValue() != checksum)
+				break;
+
+			this.addToIndex(new String(keyBytes, "UTF-8"), new Slot(
+					dataOffset, length));
+			position = dataOffset + length;
+		}
+		return position;
+	}
+
+	private boolean readFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			int count = this.channel.read(buffer, position);
+			if (count < 0)
+				return false;
+			position += count;
+		}
+		return true;
+	}
+
+	/**
+	 * Creates an empty index that iterates from the least recently read
+	 * record. The saved index keeps this order, so that it survives restarts.
+	 */
+	private static Map<String, Slot> createIndex() {
+		return new LinkedHashMap<String, Slot>(16, 0.75f, true);
+	}
+
+	private void addToIndex(String key, Slot slot) {
+		Slot old = this.index.put(key, slot);
+		this.liveBytes += slot.length;
+		if (old != null) {
+			this.liveBytes -= old.length;
+			this.deadBytes += old.length;
+		}
+	}
+
+	/**
+	 * Evicts the least recently read records until the live records fit in
+	 * the budget. The most recently written record is never evicted.
+	 */
+	private void evictOverBudget() {
+		Iterator<Slot> it = this.index.values().iterator();
+		while ((this.liveBytes > this.budget) && (this.index.size() > 1)) {
+			Slot evicted = it.next();
+			it.remove();
+			this.liveBytes -= evicted.length;
+			this.deadBytes += evicted.length;
+		}
+	}
+
+	/**
+	 * Returns the bytes stored under the specified key. The returned buffer
+	 * is a read-only mapping of the record in the pack file.
+	 * 
+	 * @param key
+	 *            Record key.
+	 * @return The stored bytes, or <code>null</code> if nothing is stored
+	 *         under this key.
+	 */
+	public synchronized ByteBuffer get(String key) {
+		Slot slot = this.index.get(key);
+		if (slot == null)
+			return null;
+
+		try {
+			if (slot.offset + slot.length > this.channel.size()) {
+				// the pack file has been cut by someone else
+				this.index.remove(key);
+				this.liveBytes -= slot.length;
+				return null;
+			}
+			return this.channel.map(FileChannel.MapMode.READ_ONLY,
+					slot.offset, slot.length);
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Appends the specified bytes under the specified key. A previously stored
+	 * record for the same key is replaced.
+	 * 
+	 * @param key
+	 *            Record key.
+	 * @param bytes
+	 *            The bytes to store.
+	 */
+	public synchronized void put(String key, byte[] bytes) {
+		try {
+			byte[] keyBytes = key.getBytes("UTF-8");
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+
+			ByteBuffer record = ByteBuffer.allocate(6 + keyBytes.length + 8
+					+ bytes.length);
+			record.putInt(RECORD_MAGIC);
+			record.putShort((short) keyBytes.length);
+			record.put(keyBytes);
+			record.putInt(bytes.length);
+			record.putInt((int) crc.getValue());
+			record.put(bytes);
+			record.flip();
+
+			long position = this.channel.size();
+			while (record.hasRemaining()) {
+				this.channel.write(record, position + record.position());
+			}
+			this.addToIndex(key, new Slot(position + 6 + keyBytes.length + 8,
+					bytes.length));
+			this.evictOverBudget();
+
+			if (this.shouldCompact()) {
+				this.compact();
+			} else if (++this.unsavedCount >= INDEX_SAVE_INTERVAL) {
+				this.saveIndex();
+			}
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	private boolean shouldCompact() throws IOException {
+		return (this.deadBytes >= COMPACTION_THRESHOLD)
+				&& (this.deadBytes >= this.compactionRetryBytes)
+				&& (2 * this.deadBytes >= this.channel.size());
+	}
+
+	/**
+	 * Rewrites the pack file with only the live records. The buffers returned
+	 * by {@link #get(String)} keep mapping the old pack file, and some
+	 * platforms do not allow replacing a mapped file. In this case the old
+	 * pack file is kept, and the compaction is retried on the next write that
+	 * needs it.
+	 */
+	private void compact() throws IOException {
+		File compacted = new File(this.packFile.getParentFile(),
+				"art.pack.compact");
+		compacted.delete();
+		RandomAccessFile target = new RandomAccessFile(compacted, "rw");
+		try {
+			FileChannel targetChannel = target.getChannel();
+			for (Map.Entry<String, Slot> entry : this.index.entrySet()) {
+				Slot slot = entry.getValue();
+				ByteBuffer data = ByteBuffer.allocate(slot.length);
+				this.readFully(data, slot.offset);
+				byte[] keyBytes = entry.getKey().getBytes("UTF-8");
+				CRC32 crc = new CRC32();
+				crc.update(data.array());
+
+				ByteBuffer header = ByteBuffer.allocate(6 + keyBytes.length
+						+ 8);
+				header.putInt(RECORD_MAGIC);
+				header.putShort((short) keyBytes.length);
+				header.put(keyBytes);
+				header.putInt(slot.length);
+				header.putInt((int) crc.getValue());
+				header.flip();
+				data.flip();
+				targetChannel.write(header);
+				targetChannel.write(data);
+			}
+			targetChannel.force(true);
+		} finally {
+			target.close();
+		}
+
+		// the old index is no longer valid for the compacted file. Without
+		// it the pack file is scanned on opening, and this works for both
+		// the old and the compacted file.
+		this.indexFile.delete();
+		this.pack.close();
+		File old = new File(this.packFile.getParentFile(), "art.pack.old");
+		old.delete();
+		boolean isReplaced = false;
+		if (this.packFile.renameTo(old)) {
+			isReplaced = compacted.renameTo(this.packFile);
+			if (isReplaced) {
+				old.delete();
+			} else {
+				old.renameTo(this.packFile);
+			}
+		}
+		compacted.delete();
+		this.open();
+		this.evictOverBudget();
+		this.compactionRetryBytes = isReplaced ? 0 : this.deadBytes
+				+ COMPACTION_THRESHOLD;
+		this.saveIndex();
+	}
+
+	/**
+	 * Saves the index file. The index is first written to a temporary file
+	 * which is then renamed.
+	 */
+	private void saveIndex() throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(content);
+		data.writeInt(INDEX_MAGIC);
+		data.writeLong(this.channel.size());
+		data.writeLong(this.deadBytes);
+		data.writeInt(this.index.size());
+		for (Map.Entry<String, Slot> entry : this.index.entrySet()) {
+			data.writeUTF(entry.getKey());
+			data.writeLong(entry.getValue().offset);
+			data.writeInt(entry.getValue().length);
+		}
+		data.flush();
+		CRC32 crc = new CRC32();
+		crc.update(content.toByteArray());
+		data.writeInt((int) crc.getValue());
+		data.flush();
+
+		// the index must never cover data that is not on the disk yet
+		this.channel.force(false);
+
+		File tmp = new File(this.indexFile.getParentFile(), "art.idx.tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			content.writeTo(out);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		this.indexFile.delete();
+		if (!tmp.renameTo(this.indexFile)) {
+			throw new IOException("Could not replace " + this.indexFile);
+		}
+		this.unsavedCount = 0;
+	}
+
+	/**
+	 * Saves the index and closes the pack file.
+	 */
+	public synchronized void close() {
+		try {
+			if (this.unsavedCount > 0) {
+				this.saveIndex();
+			}
+			this.pack.close();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+}
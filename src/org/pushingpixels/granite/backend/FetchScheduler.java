@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.backend;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Schedules all the backend requests. Waiting requests are started in the
+ * order of their {@link FetchPriority}, which is evaluated every time the next
+ * request is picked. The number of concurrently running requests is capped
+ * per host. The default cap can be changed with the
+ * <code>granite.fetch.maxPerHost</code> system property.
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class FetchScheduler {
+	/**
+	 * The host of the MusicBrainz web service.
+	 */
+	public static final String MUSICBRAINZ_HOST = "musicbrainz.org";
+
+	/**
+	 * The host of the Amazon album art.
+	 */
+	public static final String AMAZON_IMAGES_HOST = "ec1.images-amazon.com";
+
+	/**
+	 * The shared scheduler instance.
+	 */
+	private static FetchScheduler instance;
+
+	/**
+	 * Runs the requests.
+	 */
+	private ExecutorService workers;
+
+	/**
+	 * The requests waiting to be started.
+	 */
+	private List<Task> waiting;
+
+	/**
+	 * The number of running requests for every host.
+	 */
+	private Map<String, Integer> runningCounts;
+
+	/**
+	 * Host-specific caps on the number of concurrently running requests.
+	 */
+	private Map<String, Integer> hostLimits;
+
+	/**
+	 * The cap on the number of concurrently running requests for hosts
+	 * without a specific cap.
+	 */
+	private int defaultHostLimit;
+
+	/**
+	 * The statistics of the scheduled requests.
+	 */
+	private StageStats stats;
+
+	/**
+	 * A single waiting request.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private static class Task {
+		private String host;
+
+		private Runnable runnable;
+
+		private long enqueueTime;
+
+		Task(String host, Runnable runnable, long enqueueTime) {
+			this.host = host;
+			this.runnable = runnable;
+			this.enqueueTime = enqueueTime;
+		}
+
+		float getPriority() {
+			if (this.runnable instanceof FetchPriority)
+				return ((FetchPriority) this.runnable).getPriority();
+			return FetchPriority.URGENT.getPriority();
+		}
+
+		boolean isCancelled() {
+			return (this.runnable instanceof Future<?>)
+					&& ((Future<?>) this.runnable).isDone();
+		}
+	}
+
+	/**
+	 * Returns the shared scheduler.
+	 * 
+	 * @return The shared scheduler.
+	 */
+	public static synchronized FetchScheduler getDefault() {
+		if (instance == null) {
+			instance = new FetchScheduler(Integer.getInteger(
+					"granite.fetch.maxPerHost", 4));
+			// MusicBrainz asks its clients for at most one request per
+			// second. The rate itself is enforced by the transport.
+			instance.setHostLimit(MUSICBRAINZ_HOST, 1);
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new scheduler.
+	 * 
+	 * @param defaultHostLimit
+	 *            The cap on the number of concurrently running requests for
+	 *            hosts without a specific cap.
+	 */
+	public FetchScheduler(int defaultHostLimit) {
+		this.defaultHostLimit = defaultHostLimit;
+		this.waiting = new ArrayList<Task>();
+		this.runningCounts = new HashMap<String, Integer>();
+		this.hostLimits = new HashMap<String, Integer>();
+		this.stats = new StageStats("fetch");
+		this.workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			private int counter = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Granite Fetch " + (counter++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Sets the cap on the number of concurrently running requests for the
+	 * specified host.
+	 * 
+	 * @param host
+	 *            Host name.
+	 * @param limit
+	 *            The maximal number of concurrently running requests.
+	 */
+	public synchronized void setHostLimit(String host, int limit) {
+		this.hostLimits.put(host, limit);
+		this.dispatch();
+	}
+
+	/**
+	 * Returns an executor that schedules requests to the specified host. If a
+	 * runnable passed to this executor implements {@link FetchPriority}, it is
+	 * used as the runnable's priority. Otherwise the runnable is scheduled
+	 * with {@link FetchPriority#URGENT}.
+	 * 
+	 * @param host
+	 *            Host name.
+	 * @return The executor for the requests to this host.
+	 */
+	public Executor getExecutor(final String host) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				schedule(host, command);
+			}
+		};
+	}
+
+	private synchronized void schedule(String host, Runnable runnable) {
+		this.waiting.add(new Task(host, runnable, this.stats.enqueued()));
+		this.dispatch();
+	}
+
+	/**
+	 * Starts the most urgent waiting requests for the hosts that are below
+	 * their cap.
+	 */
+	private synchronized void dispatch() {
+		while (true) {
+			Task next = null;
+			float nextPriority = 0.0f;
+			for (Iterator<Task> it = this.waiting.iterator(); it.hasNext();) {
+				Task task = it.next();
+				if (task.isCancelled()) {
+					it.remove();
+					this.stats.dropped();
+					continue;
+				}
+				if (this.getRunningCount(task.host) >= this.getHostLimit(task.host))
+					continue;
+				float priority = task.getPriority();
+				if ((next == null) || (priority < nextPriority)) {
+					next = task;
+					nextPriority = priority;
+				}
+			}
+			if (next == null)
+				return;
+
+			this.waiting.remove(next);
+			this.stats.started();
+			this.runningCounts.put(next.host, this.getRunningCount(next.host) + 1);
+			final Task toRun = next;
+			this.workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						toRun.runnable.run();
+					} finally {
+						finished(toRun);
+					}
+				}
+			});
+		}
+	}
+
+	private synchronized void finished(Task task) {
+		this.stats.finished(task.enqueueTime);
+		this.runningCounts.put(task.host, this.getRunningCount(task.host) - 1);
+		this.dispatch();
+	}
+
+	private int getRunningCount(String host) {
+		Integer count = this.runningCounts.get(host);
+		return (count == null) ? 0 : count;
+	}
+
+	private int getHostLimit(String host) {
+		Integer limit = this.hostLimits.get(host);
+		return (limit == null) ? this.defaultHostLimit : limit;
+	}
+
+	/**
+	 * Returns the statistics of the scheduled requests.
+	 * 
+	 * @return The statistics of the scheduled requests.
+	 */
+	public StageStats getStats() {
+		return this.stats;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Fetch scheduler: " + this.waiting.size() + " waiting, "
+				+ this.runningCounts + " running";
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.backend;
+
+import java.util.concurrent.*;
+
+/**
+ * The handle of a single caller to a request of {@link SingleFlight}.
+ * Cancelling this handle does not affect the other callers of the same
+ * request.
+ * 
+ * @author Kirill Grouchnikov
+ * @param <V>
+ *            The type of the loaded resource.
+ */
+public class FlightHandle<V> implements Future<V> {
+	private SingleFlight<V> owner;
+
+	private Future<V> flight;
+
+	private FetchPriority priority;
+
+	private volatile boolean isCancelled;
+
+	/**
+	 * Returns a handle for a resource that is already available.
+	 * 
+	 * @param value
+	 *            The resource.
+	 * @return A completed handle.
+	 */
+	public static <V> FlightHandle<V> completed(V value) {
+		FutureTask<V> done = new FutureTask<V>(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, value);
+		done.run();
+		return new FlightHandle<V>(null, done, FetchPriority.URGENT);
+	}
+
+	FlightHandle(SingleFlight<V> owner, Future<V> flight,
+			FetchPriority priority) {
+		this.owner = owner;
+		this.flight = flight;
+		this.priority = priority;
+		this.isCancelled = false;
+	}
+
+	/**
+	 * Cancels this handle. The shared request is cancelled only if all its
+	 * handles have been cancelled.
+	 * 
+	 * @param mayInterruptIfRunning
+	 *            Ignored. A shared request that is cancelled is always
+	 *            interrupted.
+	 * @return <code>false</code> if the request has already completed or this
+	 *         handle has already been cancelled, <code>true</code> otherwise.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (this.isCancelled || this.flight.isDone())
+				return false;
+			this.isCancelled = true;
+		}
+		this.owner.release(this.flight, this.priority);
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return this.isCancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return this.isCancelled || this.flight.isDone();
+	}
+
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		if (this.isCancelled)
+			throw new CancellationException();
+		return this.flight.get();
+	}
+
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (this.isCancelled)
+			throw new CancellationException();
+		return this.flight.get(timeout, unit);
+	}
+
+	/**
+	 * Waits for the result and rethrows the failure of the loader as is.
+	 * 
+	 * @return The loaded resource.
+	 * @throws Exception
+	 *             If the loader failed, or this handle has been cancelled.
+	 */
+	public V await() throws Exception {
+		try {
+			return this.get();
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw ee;
+		}
+	}
+
+	/**
+	 * Waits at most the specified time for the result and rethrows the
+	 * failure of the loader as is. The request keeps running after the
+	 * timeout.
+	 * 
+	 * @param timeout
+	 *            The maximal time to wait.
+	 * @param unit
+	 *            The unit of the timeout.
+	 * @return The loaded resource.
+	 * @throws TimeoutException
+	 *             If the result is not available within the timeout.
+	 * @throws Exception
+	 *             If the loader failed, or this handle has been cancelled.
+	 */
+	public V await(long timeout, TimeUnit unit) throws Exception {
+		try {
+			return this.get(timeout, unit);
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw ee;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.backend;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+
+/**
+ * Response of a single {@link HttpTransport} request. The response holds one
+ * of the per-host connection slots of the transport until it is closed, and
+ * must always be closed - preferably in a <code>finally</code> block - so
+ * that the underlying connection can go back to the keep-alive pool.
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class HttpResponse implements Closeable {
+	/**
+	 * The maximal number of bytes that will be drained from an unfinished
+	 * body on {@link #close()} to keep the connection reusable.
+	 */
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+	/**
+	 * The underlying connection.
+	 */
+	private HttpURLConnection connection;
+
+	/**
+	 * The status code of this response.
+	 */
+	private int statusCode;
+
+	/**
+	 * The body stream, transparently decompressed if the server sent a gzip
+	 * encoded body.
+	 */
+	private InputStream body;
+
+	/**
+	 * The host slot held by this response.
+	 */
+	private HttpTransport.HostSlot slot;
+
+	/**
+	 * The scope of the cancellable request that has opened this response, or
+	 * <code>null</code> if the request is not cancellable.
+	 */
+	private AbortScope abortScope;
+
+	/**
+	 * Indicates whether this response has been closed.
+	 */
+	private boolean isClosed;
+
+	HttpResponse(HttpURLConnection connection, int statusCode,
+			InputStream body, HttpTransport.HostSlot slot,
+			AbortScope abortScope) {
+		this.connection = connection;
+		this.statusCode = statusCode;
+		this.body = body;
+		this.slot = slot;
+		this.abortScope = abortScope;
+		this.isClosed = false;
+	}
+
+	/**
+	 * Returns the HTTP status code of this response.
+	 * 
+	 * @return The HTTP status code of this response.
+	 */
+	public int getStatusCode() {
+		return this.statusCode;
+	}
+
+	/**
+	 * Returns the value of the specified response header.
+	 * 
+	 * @param name
+	 *            Header name.
+	 * @return The header value, or <code>null</code> if the response does not
+	 *         have this header.
+	 */
+	public String getHeader(String name) {
+		return this.connection.getHeaderField(name);
+	}
+
+	/**
+	 * Returns the (decompressed) body of this response. Note that the stream
+	 * is empty for responses without a body.
+	 * 
+	 * @return The body of this response.
+	 */
+	public InputStream getInputStream() {
+		return this.body;
+	}
+
+	/**
+	 * Reads the remaining body of this response and closes it.
+	 * 
+	 * @return The remaining body bytes.
+	 * @throws IOException
+	 *             If the body could not be read.
+	 */
+	public byte[] readBody() throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = this.body.read(buffer)) >= 0) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			this.close();
+		}
+	}
+
+	/**
+	 * Aborts this response. Unlike {@link #close()}, the remaining body is not
+	 * drained and the underlying connection is not reused. Can be called from
+	 * any thread to unblock a reader of {@link #getInputStream()}.
+	 */
+	public void abort() {
+		synchronized (this) {
+			if (this.isClosed)
+				return;
+			this.isClosed = true;
+		}
+		this.connection.disconnect();
+		this.release();
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (this.isClosed)
+				return;
+			this.isClosed = true;
+		}
+		try {
+			// drain what is left so that the connection can be kept alive
+			byte[] buffer = new byte[4096];
+			int drained = 0;
+			int count;
+			while ((drained < MAX_DRAIN_BYTES)
+					&& ((count = this.body.read(buffer)) >= 0)) {
+				drained += count;
+			}
+			this.body.close();
+		} catch (IOException ioe) {
+			this.connection.disconnect();
+		} finally {
+			this.release();
+		}
+	}
+
+	/**
+	 * Releases the host slot, and stops tracking the connection once it is
+	 * back in the keep-alive pool or disconnected.
+	 */
+	private void release() {
+		if (this.abortScope != null)
+			this.abortScope.unregister(this.connection);
+		this.slot.release();
+	}
+}
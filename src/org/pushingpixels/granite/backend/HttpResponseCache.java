@@ -0,0 +1,516 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.backend;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Persistent on-disk cache of HTTP responses. Every entry stores the response
+ * body, the <code>ETag</code> and <code>Last-Modified</code> validators and the
+ * time of the last fetch. Fresh entries are served without touching the
+ * network, and stale entries are revalidated with a conditional GET.
+ * 
+ * <p>
+ * The cache location, size and freshness can be changed with the
+ * <code>granite.cache.dir</code>, <code>granite.cache.maxBytes</code> and
+ * <code>granite.cache.freshMillis</code> system properties. Once the total size
+ * of the entries goes over the limit, the least recently used entries are
+ * evicted.
+ * </p>
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class HttpResponseCache {
+	/**
+	 * The shared cache instance.
+	 */
+	private static HttpResponseCache instance;
+
+	/**
+	 * Marks the beginning of every cache entry file.
+	 */
+	private static final int ENTRY_MAGIC = 0x47524331;
+
+	/**
+	 * The maximal number of unread bytes that will be read on closing a
+	 * partially consumed body so that it can be stored.
+	 */
+	private static final int MAX_TAIL_BYTES = 16 * 1024;
+
+	/**
+	 * The transport for cache misses and revalidations.
+	 */
+	private HttpTransport transport;
+
+	/**
+	 * The cache directory.
+	 */
+	private File directory;
+
+	/**
+	 * The maximal total size of the cached entries in bytes.
+	 */
+	private long maxBytes;
+
+	/**
+	 * How long (in milliseconds) an entry is served without revalidation.
+	 */
+	private long freshMillis;
+
+	/**
+	 * Sizes of all the cache entries, in the least recently used order.
+	 */
+	private LinkedHashMap<String, Long> entrySizes;
+
+	/**
+	 * The total size of the cache entries.
+	 */
+	private long totalBytes;
+
+	private int hitCount;
+
+	private int revalidatedCount;
+
+	private int missCount;
+
+	private int evictionCount;
+
+	/**
+	 * A single cache entry.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private static class Entry {
+		String url;
+
+		String etag;
+
+		String lastModified;
+
+		long fetchTime;
+
+		byte[] body;
+	}
+
+	/**
+	 * Returns the shared cache.
+	 * 
+	 * @return The shared cache.
+	 */
+	public static synchronized HttpResponseCache getDefault() {
+		if (instance == null) {
+			String dirName = System.getProperty("granite.cache.dir");
+			File dir = (dirName != null) ? new File(dirName) : new File(
+					System.getProperty("user.home"), ".granite"
+							+ File.separator + "http-cache");
+			instance = new HttpResponseCache(HttpTransport.getDefault(), dir,
+					Long.getLong("granite.cache.maxBytes", 20 * 1024 * 1024),
+					Long.getLong("granite.cache.freshMillis",
+							24 * 60 * 60 * 1000L));
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param transport
+	 *            The transport for cache misses and revalidations.
+	 * @param directory
+	 *            The cache directory. Is created if necessary.
+	 * @param maxBytes
+	 *            The maximal total size of the cached entries in bytes.
+	 * @param freshMillis
+	 *            How long (in milliseconds) an entry is served without
+	 *            revalidation.
+	 */
+	public HttpResponseCache(HttpTransport transport, File directory,
+			long maxBytes, long freshMillis) {
+		this.transport = transport;
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.freshMillis = freshMillis;
+		this.entrySizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		this.totalBytes = 0;
+
+		this.directory.mkdirs();
+		File[] files = this.directory.listFiles();
+		if (files != null) {
+			// the last modification time of the entry files tracks the
+			// last access, restore the least recently used order
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(File f1, File f2) {
+					long diff = f1.lastModified() - f2.lastModified();
+					return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+				}
+			});
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(".tmp")) {
+					// left over from an interrupted store
+					file.delete();
+					continue;
+				}
+				if (!name.endsWith(".entry"))
+					continue;
+				String key = name.substring(0, name.length()
+						- ".entry".length());
+				this.entrySizes.put(key, file.length());
+				this.totalBytes += file.length();
+			}
+		}
+		this.evict();
+	}
+
+	/**
+	 * Opens a stream with the body of the specified URL. Fresh entries are
+	 * returned from the cache. Stale entries are revalidated with the server,
+	 * and fall back to the cached body if the server cannot be reached. On a
+	 * cache miss, the returned stream reads directly from the network and the
+	 * body is stored in the cache once it has been fully read.
+	 * 
+	 * @param url
+	 *            Request URL.
+	 * @return The body stream. Must be closed by the caller.
+	 * @throws IOException
+	 *             If the body is neither cached nor can be fetched.
+	 */
+	public InputStream openStream(String url) throws IOException {
+		String key = getKey(url);
+		Entry entry = this.read(key, url);
+		long now = System.currentTimeMillis();
+		if ((entry != null) && (now - entry.fetchTime < this.freshMillis)) {
+			synchronized (this) {
+				this.hitCount++;
+			}
+			this.touch(key);
+			return new ByteArrayInputStream(entry.body);
+		}
+
+		Map<String, String> requestHeaders = new HashMap<String, String>();
+		if (entry != null) {
+			if (entry.etag != null)
+				requestHeaders.put("If-None-Match", entry.etag);
+			if (entry.lastModified != null)
+				requestHeaders.put("If-Modified-Since", entry.lastModified);
+		}
+
+		HttpResponse response;
+		try {
+			response = this.transport.get(url, requestHeaders);
+		} catch (IOException ioe) {
+			if (entry == null)
+				throw ioe;
+			// serve the stale body when the server cannot be reached
+			return new ByteArrayInputStream(entry.body);
+		}
+
+		int statusCode = response.getStatusCode();
+		if ((entry != null)
+				&& (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+			response.close();
+			synchronized (this) {
+				this.revalidatedCount++;
+			}
+			entry.fetchTime = now;
+			this.write(key, entry);
+			return new ByteArrayInputStream(entry.body);
+		}
+
+		if (statusCode != HttpURLConnection.HTTP_OK) {
+			response.close();
+			if (entry != null)
+				return new ByteArrayInputStream(entry.body);
+			throw new IOException("HTTP " + statusCode + " for " + url);
+		}
+
+		synchronized (this) {
+			this.missCount++;
+		}
+		Entry newEntry = new Entry();
+		newEntry.url = url;
+		newEntry.etag = response.getHeader("ETag");
+		newEntry.lastModified = response.getHeader("Last-Modified");
+		newEntry.fetchTime = now;
+		return new CachingInputStream(key, newEntry, response);
+	}
+
+	/**
+	 * Stream that passes the network body to the reader, and stores it in the
+	 * cache once it has been fully read.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private class CachingInputStream extends FilterInputStream {
+		private String key;
+
+		private Entry entry;
+
+		private HttpResponse response;
+
+		private ByteArrayOutputStream copy;
+
+		private boolean isComplete;
+
+		public CachingInputStream(String key, Entry entry,
+				HttpResponse response) {
+			super(response.getInputStream());
+			this.key = key;
+			this.entry = entry;
+			this.response = response;
+			this.copy = new ByteArrayOutputStream();
+			this.isComplete = false;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b < 0)
+				this.isComplete = true;
+			else
+				this.copy.write(b);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = super.read(b, off, len);
+			if (count < 0)
+				this.isComplete = true;
+			else
+				this.copy.write(b, off, count);
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// route through read() so that the copy stays complete
+			byte[] buffer = new byte[(int) Math.min(n, 4096)];
+			long skipped = 0;
+			while (skipped < n) {
+				int count = this.read(buffer, 0, (int) Math.min(buffer.length,
+						n - skipped));
+				if (count < 0)
+					break;
+				skipped += count;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				// XML parsers can stop reading right after the closing root
+				// element. Read the (usually whitespace) tail so that the
+				// body can still be stored.
+				byte[] buffer = new byte[1024];
+				int drained = 0;
+				while (!this.isComplete && (drained < MAX_TAIL_BYTES)) {
+					int count = this.read(buffer, 0, buffer.length);
+					if (count > 0)
+						drained += count;
+				}
+			} catch (IOException ioe) {
+				this.isComplete = false;
+			}
+			this.response.close();
+			if (this.isComplete) {
+				this.entry.body = this.copy.toByteArray();
+				write(this.key, this.entry);
+			}
+		}
+	}
+
+	/**
+	 * Returns the hit, revalidation, miss and eviction counts of this cache.
+	 * 
+	 * @return Cache statistics.
+	 */
+	@Override
+	public synchronized String toString() {
+		return "HTTP cache: " + this.entrySizes.size() + " entries, "
+				+ this.totalBytes + " bytes, " + this.hitCount + " hits, "
+				+ this.revalidatedCount + " revalidated, " + this.missCount
+				+ " misses, " + this.evictionCount + " evicted";
+	}
+
+	private static String getKey(String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(url.getBytes("UTF-8"));
+			StringBuilder result = new StringBuilder();
+			for (byte b : hash) {
+				result.append(Character.forDigit((b >> 4) & 0xF, 16));
+				result.append(Character.forDigit(b & 0xF, 16));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae);
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException(uee);
+		}
+	}
+
+	private File getEntryFile(String key) {
+		return new File(this.directory, key + ".entry");
+	}
+
+	/**
+	 * Reads the entry with the specified key.
+	 * 
+	 * @return The entry, or <code>null</code> if there is no entry for this
+	 *         URL or the entry file is corrupt.
+	 */
+	private Entry read(String key, String url) {
+		File file = this.getEntryFile(key);
+		if (!file.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != ENTRY_MAGIC)
+				throw new IOException("Corrupt cache entry " + file);
+			Entry entry = new Entry();
+			entry.url = in.readUTF();
+			if (!url.equals(entry.url))
+				return null;
+			entry.etag = readOptionalString(in);
+			entry.lastModified = readOptionalString(in);
+			entry.fetchTime = in.readLong();
+			entry.body = new byte[in.readInt()];
+			in.readFully(entry.body);
+			return entry;
+		} catch (IOException ioe) {
+			this.remove(key);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ioe) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the specified entry. The entry is first written to a temporary
+	 * file which is then renamed, so that an interrupted write never leaves a
+	 * partial entry behind.
+	 */
+	private void write(String key, Entry entry) {
+		File file = this.getEntryFile(key);
+		File tmp = new File(this.directory, key + "."
+				+ Thread.currentThread().getId() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(ENTRY_MAGIC);
+				out.writeUTF(entry.url);
+				writeOptionalString(out, entry.etag);
+				writeOptionalString(out, entry.lastModified);
+				out.writeLong(entry.fetchTime);
+				out.writeInt(entry.body.length);
+				out.write(entry.body);
+			} finally {
+				out.close();
+			}
+			synchronized (this) {
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					throw new IOException("Could not rename " + tmp);
+				}
+				Long oldSize = this.entrySizes.put(key, file.length());
+				if (oldSize != null)
+					this.totalBytes -= oldSize;
+				this.totalBytes += file.length();
+				this.evict();
+			}
+		} catch (IOException ioe) {
+			// the cache is an optimization, keep going without it
+			tmp.delete();
+			ioe.printStackTrace();
+		}
+	}
+
+	private synchronized void touch(String key) {
+		// update the access order, both in memory and on disk
+		this.entrySizes.get(key);
+		this.getEntryFile(key).setLastModified(System.currentTimeMillis());
+	}
+
+	private synchronized void remove(String key) {
+		Long size = this.entrySizes.remove(key);
+		if (size != null)
+			this.totalBytes -= size;
+		this.getEntryFile(key).delete();
+	}
+
+	/**
+	 * Evicts the least recently used entries until the total size of the
+	 * entries is within the limit.
+	 */
+	private synchronized void evict() {
+		Iterator<Map.Entry<String, Long>> it = this.entrySizes.entrySet()
+				.iterator();
+		while ((this.totalBytes > this.maxBytes) && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			it.remove();
+			this.totalBytes -= eldest.getValue();
+			this.getEntryFile(eldest.getKey()).delete();
+			this.evictionCount++;
+		}
+	}
+
+	private static String readOptionalString(DataInputStream in)
+			throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeOptionalString(DataOutputStream out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+}
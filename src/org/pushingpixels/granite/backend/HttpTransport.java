@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.backend;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared HTTP transport for all the backend requests. Provides:
+ * 
+ * <ul>
+ * <li>Keep-alive connection reuse (based on the connection cache of
+ * {@link HttpURLConnection})</li>
+ * <li>A limit on the number of concurrent connections per host</li>
+ * <li>An optional minimal interval between requests to the same host</li>
+ * <li>Gzip content negotiation</li>
+ * <li>Connect and read timeouts, so that a stalled socket fails the request
+ * instead of hanging the calling job</li>
+ * <li>Asynchronous requests on a shared pool of worker threads</li>
+ * <li>Disconnecting the connections of the requests that are cancelled while
+ * they are loaded by a {@link SingleFlight}</li>
+ * </ul>
+ * 
+ * The defaults can be changed with the <code>granite.http.connectTimeout</code>
+ * , <code>granite.http.readTimeout</code> (both in milliseconds),
+ * <code>granite.http.maxConnectionsPerHost</code> and
+ * <code>granite.http.threads</code> system properties.
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class HttpTransport {
+	/**
+	 * The shared transport instance.
+	 */
+	private static HttpTransport instance;
+
+	/**
+	 * Connect timeout in milliseconds.
+	 */
+	private volatile int connectTimeout;
+
+	/**
+	 * Read timeout in milliseconds.
+	 */
+	private volatile int readTimeout;
+
+	/**
+	 * The maximal number of concurrent connections to a single host.
+	 */
+	private final int maxConnectionsPerHost;
+
+	/**
+	 * Per-host connection slots.
+	 */
+	private final Map<String, HostSlot> hostSlots;
+
+	/**
+	 * Runs the asynchronous requests.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Host-specific minimal intervals between the starts of two requests.
+	 */
+	private final Map<String, Integer> minRequestIntervals;
+
+	/**
+	 * Limits the number of concurrent connections to a single host, and the
+	 * rate of requests for hosts with a minimal request interval.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	static class HostSlot {
+		private final Semaphore semaphore;
+
+		private volatile int minRequestInterval;
+
+		private long nextRequestTime;
+
+		HostSlot(int permits) {
+			this.semaphore = new Semaphore(permits, true);
+			this.minRequestInterval = 0;
+			this.nextRequestTime = 0;
+		}
+
+		void acquire() throws InterruptedIOException {
+			try {
+				this.semaphore.acquire();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while waiting for a connection");
+			}
+			if (this.minRequestInterval <= 0)
+				return;
+
+			try {
+				synchronized (this) {
+					long now = System.currentTimeMillis();
+					if (this.nextRequestTime > now) {
+						Thread.sleep(this.nextRequestTime - now);
+						now = this.nextRequestTime;
+					}
+					this.nextRequestTime = now + this.minRequestInterval;
+				}
+			} catch (InterruptedException ie) {
+				this.semaphore.release();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while waiting for the request rate limit");
+			}
+		}
+
+		void release() {
+			this.semaphore.release();
+		}
+	}
+
+	/**
+	 * Returns the shared transport.
+	 * 
+	 * @return The shared transport.
+	 */
+	public static synchronized HttpTransport getDefault() {
+		if (instance == null) {
+			instance = new HttpTransport(Integer.getInteger(
+					"granite.http.connectTimeout", 5000), Integer.getInteger(
+					"granite.http.readTimeout", 15000), Integer.getInteger(
+					"granite.http.maxConnectionsPerHost", 4), Integer
+					.getInteger("granite.http.threads", 6));
+			// MusicBrainz asks its clients for at most one request per second
+			instance.setMinRequestInterval(FetchScheduler.MUSICBRAINZ_HOST,
+					1000);
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new transport.
+	 * 
+	 * @param connectTimeout
+	 *            Connect timeout in milliseconds.
+	 * @param readTimeout
+	 *            Read timeout in milliseconds.
+	 * @param maxConnectionsPerHost
+	 *            The maximal number of concurrent connections to a single
+	 *            host.
+	 * @param threadCount
+	 *            The number of threads for asynchronous requests.
+	 */
+	public HttpTransport(int connectTimeout, int readTimeout,
+			int maxConnectionsPerHost, int threadCount) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.hostSlots = new HashMap<String, HostSlot>();
+		this.minRequestIntervals = new HashMap<String, Integer>();
+
+		// keep the idle connections of every host that we use around
+		// so that they can be reused by the following requests
+		if (System.getProperty("http.keepAlive") == null) {
+			System.setProperty("http.keepAlive", "true");
+		}
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections", String
+					.valueOf(maxConnectionsPerHost));
+		}
+
+		this.executor = Executors.newFixedThreadPool(threadCount,
+				new ThreadFactory() {
+					private int counter = 0;
+
+					@Override
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Granite HTTP "
+								+ (counter++));
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Sets the minimal interval between the starts of two requests to the
+	 * specified host.
+	 * 
+	 * @param host
+	 *            Host name.
+	 * @param millis
+	 *            The minimal interval in milliseconds.
+	 */
+	public void setMinRequestInterval(String host, int millis) {
+		synchronized (this.hostSlots) {
+			this.minRequestIntervals.put(host, millis);
+			HostSlot slot = this.hostSlots.get(host);
+			if (slot != null) {
+				slot.minRequestInterval = millis;
+			}
+		}
+	}
+
+	private HostSlot getHostSlot(String host) {
+		synchronized (this.hostSlots) {
+			HostSlot slot = this.hostSlots.get(host);
+			if (slot == null) {
+				slot = new HostSlot(this.maxConnectionsPerHost);
+				Integer interval = this.minRequestIntervals.get(host);
+				if (interval != null) {
+					slot.minRequestInterval = interval;
+				}
+				this.hostSlots.put(host, slot);
+			}
+			return slot;
+		}
+	}
+
+	/**
+	 * Executes a GET request. This method blocks until a connection slot to
+	 * the host is available and the response headers have been received. The
+	 * returned response must be closed by the caller.
+	 * 
+	 * @param url
+	 *            Request URL.
+	 * @param requestHeaders
+	 *            Additional request headers. Can be <code>null</code>.
+	 * @return The response.
+	 * @throws IOException
+	 *             If the connection failed or timed out.
+	 */
+	public HttpResponse get(String url, Map<String, String> requestHeaders)
+			throws IOException {
+		URL u = new URL(url);
+		HostSlot slot = this.getHostSlot(u.getHost());
+		slot.acquire();
+
+		HttpURLConnection connection = null;
+		AbortScope abortScope = null;
+		try {
+			connection = (HttpURLConnection) u.openConnection();
+			abortScope = AbortScope.register(connection);
+			connection.setConnectTimeout(this.connectTimeout);
+			connection.setReadTimeout(this.readTimeout);
+			connection.setUseCaches(false);
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			if (requestHeaders != null) {
+				for (Map.Entry<String, String> header : requestHeaders
+						.entrySet()) {
+					connection.setRequestProperty(header.getKey(), header
+							.getValue());
+				}
+			}
+
+			int statusCode = connection.getResponseCode();
+			InputStream body = (statusCode >= 400) ? connection
+					.getErrorStream() : connection.getInputStream();
+			if (body == null) {
+				body = new ByteArrayInputStream(new byte[0]);
+			} else if ("gzip".equalsIgnoreCase(connection
+					.getContentEncoding())) {
+				body = new GZIPInputStream(body);
+			}
+			return new HttpResponse(connection, statusCode,
+					new BufferedInputStream(body), slot, abortScope);
+		} catch (IOException ioe) {
+			if (connection != null) {
+				connection.disconnect();
+			}
+			if (abortScope != null) {
+				abortScope.unregister(connection);
+			}
+			slot.release();
+			throw ioe;
+		} catch (RuntimeException re) {
+			if (connection != null) {
+				connection.disconnect();
+			}
+			if (abortScope != null) {
+				abortScope.unregister(connection);
+			}
+			slot.release();
+			throw re;
+		}
+	}
+
+	/**
+	 * Executes a GET request and returns the response. Fails if the server
+	 * did not respond with <code>200 OK</code>. The returned response must be
+	 * closed by the caller.
+	 * 
+	 * @param url
+	 *            Request URL.
+	 * @return The response.
+	 * @throws IOException
+	 *             If the request failed.
+	 */
+	public HttpResponse get(String url) throws IOException {
+		HttpResponse response = this.get(url, null);
+		if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+			response.close();
+			throw new IOException("HTTP " + response.getStatusCode()
+					+ " for " + url);
+		}
+		return response;
+	}
+
+	/**
+	 * Executes a GET request and returns the full response body.
+	 * 
+	 * @param url
+	 *            Request URL.
+	 * @return The response body.
+	 * @throws IOException
+	 *             If the request failed.
+	 */
+	public byte[] fetch(String url) throws IOException {
+		return this.get(url).readBody();
+	}
+
+	/**
+	 * Executes a GET request on one of the transport worker threads.
+	 * 
+	 * @param url
+	 *            Request URL.
+	 * @return The future for the response body.
+	 */
+	public Future<byte[]> fetchAsync(final String url) {
+		return this.executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return fetch(url);
+			}
+		});
+	}
+}
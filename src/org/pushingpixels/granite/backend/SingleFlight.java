@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.backend;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Registry of in-flight requests, keyed by the requested resource. Concurrent
+ * requests for the same key share a single execution of the loader, and each
+ * caller gets its own {@link FlightHandle}. Cancelling a handle detaches only
+ * that caller. The shared execution is cancelled once all its handles have
+ * been cancelled. Cancelling it interrupts the loader and disconnects the
+ * connections that the loader has opened with {@link HttpTransport}.
+ * 
+ * @author Kirill Grouchnikov
+ * @param <V>
+ *            The type of the loaded resource.
+ */
+public class SingleFlight<V> {
+	/**
+	 * The default executor for the loaders.
+	 */
+	private static ExecutorService defaultExecutor;
+
+	/**
+	 * Runs the loaders.
+	 */
+	private Executor executor;
+
+	/**
+	 * The in-flight requests.
+	 */
+	private Map<String, Flight> flights;
+
+	/**
+	 * The number of requests that have joined an in-flight request instead of
+	 * starting a new one.
+	 */
+	private int joinedCount;
+
+	/**
+	 * A single shared execution of a loader.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private class Flight extends FutureTask<V> implements FetchPriority {
+		private String key;
+
+		/**
+		 * The priorities of the handles that have not been cancelled.
+		 */
+		private List<FetchPriority> priorities;
+
+		/**
+		 * The connections opened by the loader.
+		 */
+		private AbortScope abortScope;
+
+		Flight(String key, Callable<V> loader) {
+			super(loader);
+			this.key = key;
+			this.priorities = new CopyOnWriteArrayList<FetchPriority>();
+			this.abortScope = new AbortScope();
+		}
+
+		@Override
+		public void run() {
+			AbortScope previous = AbortScope.bind(this.abortScope);
+			try {
+				super.run();
+			} finally {
+				AbortScope.bind(previous);
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean result = super.cancel(mayInterruptIfRunning);
+			if (result && mayInterruptIfRunning) {
+				// unblock the loader if it is reading from a socket
+				this.abortScope.abort();
+			}
+			return result;
+		}
+
+		/**
+		 * Returns the priority of the most urgent handle of this flight.
+		 */
+		@Override
+		public float getPriority() {
+			float result = Float.MAX_VALUE;
+			for (FetchPriority priority : this.priorities) {
+				result = Math.min(result, priority.getPriority());
+			}
+			return result;
+		}
+
+		@Override
+		protected void done() {
+			removeFlight(this);
+		}
+	}
+
+	private static synchronized ExecutorService getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private int counter = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Granite Worker "
+							+ (counter++));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Creates a new registry that runs the loaders on a shared pool of daemon
+	 * threads.
+	 */
+	public SingleFlight() {
+		this(getDefaultExecutor());
+	}
+
+	/**
+	 * Creates a new registry.
+	 * 
+	 * @param executor
+	 *            Runs the loaders.
+	 */
+	public SingleFlight(Executor executor) {
+		this.executor = executor;
+		this.flights = new HashMap<String, Flight>();
+		this.joinedCount = 0;
+	}
+
+	/**
+	 * Requests the resource with the specified key. If a request for this key
+	 * is already in flight, the returned handle shares its result. Otherwise,
+	 * the loader is started.
+	 * 
+	 * @param key
+	 *            Resource key.
+	 * @param loader
+	 *            Loads the resource. Is not called if a request for this key
+	 *            is already in flight.
+	 * @return The handle for this caller.
+	 */
+	public FlightHandle<V> submit(String key, Callable<V> loader) {
+		return this.submit(key, loader, FetchPriority.URGENT);
+	}
+
+	/**
+	 * Requests the resource with the specified key. If a request for this key
+	 * is already in flight, the returned handle shares its result, and the
+	 * shared request runs with the most urgent priority of its handles.
+	 * Otherwise, the loader is started.
+	 * 
+	 * @param key
+	 *            Resource key.
+	 * @param loader
+	 *            Loads the resource. Is not called if a request for this key
+	 *            is already in flight.
+	 * @param priority
+	 *            The priority of this caller. Is used when the executor of
+	 *            this registry is a {@link FetchScheduler} executor.
+	 * @return The handle for this caller.
+	 */
+	public FlightHandle<V> submit(String key, Callable<V> loader,
+			FetchPriority priority) {
+		Flight flight;
+		boolean isNew = false;
+		synchronized (this) {
+			flight = this.flights.get(key);
+			if (flight == null) {
+				flight = new Flight(key, loader);
+				this.flights.put(key, flight);
+				isNew = true;
+			} else {
+				this.joinedCount++;
+			}
+			flight.priorities.add(priority);
+		}
+		if (isNew) {
+			this.executor.execute(flight);
+		}
+		return new FlightHandle<V>(this, flight, priority);
+	}
+
+	private synchronized void removeFlight(Flight flight) {
+		if (this.flights.get(flight.key) == flight) {
+			this.flights.remove(flight.key);
+		}
+	}
+
+	/**
+	 * Detaches a cancelled handle from its flight, and cancels the flight if
+	 * this was its last handle.
+	 */
+	@SuppressWarnings("unchecked")
+	void release(Future<V> future, FetchPriority priority) {
+		Flight flight = (Flight) future;
+		boolean toCancel;
+		synchronized (this) {
+			flight.priorities.remove(priority);
+			toCancel = flight.priorities.isEmpty() && !flight.isDone();
+			if (toCancel) {
+				this.removeFlight(flight);
+			}
+		}
+		if (toCancel) {
+			flight.cancel(true);
+		}
+	}
+
+	/**
+	 * Returns the number of requests currently in flight.
+	 * 
+	 * @return The number of requests currently in flight.
+	 */
+	public synchronized int getInFlightCount() {
+		return this.flights.size();
+	}
+
+	/**
+	 * Returns the number of requests that have joined an in-flight request
+	 * instead of starting a new one.
+	 * 
+	 * @return The number of coalesced requests.
+	 */
+	public synchronized int getJoinedCount() {
+		return this.joinedCount;
+	}
+}
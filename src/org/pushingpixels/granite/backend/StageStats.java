@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.backend;
+
+/**
+ * Statistics of a single stage of a pipeline. Tracks the number of tasks
+ * waiting in the stage queue and running, and the latency of the completed
+ * tasks from the moment they were handed to the stage.
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class StageStats {
+	/**
+	 * Stage name.
+	 */
+	private String name;
+
+	private int queuedCount;
+
+	private int runningCount;
+
+	private long completedCount;
+
+	private long totalLatencyNanos;
+
+	private long maxLatencyNanos;
+
+	/**
+	 * Creates statistics for a new stage.
+	 * 
+	 * @param name
+	 *            Stage name.
+	 */
+	public StageStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Records a task handed to the stage.
+	 * 
+	 * @return The time the task has been handed to the stage, to be passed to
+	 *         {@link #finished(long)}.
+	 */
+	public synchronized long enqueued() {
+		this.queuedCount++;
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records a queued task that has started running.
+	 */
+	public synchronized void started() {
+		this.queuedCount--;
+		this.runningCount++;
+	}
+
+	/**
+	 * Records a queued task that has been dropped without running.
+	 */
+	public synchronized void dropped() {
+		this.queuedCount--;
+	}
+
+	/**
+	 * Records a running task that has finished.
+	 * 
+	 * @param enqueueTime
+	 *            The value returned by {@link #enqueued()} for this task.
+	 */
+	public synchronized void finished(long enqueueTime) {
+		long latency = System.nanoTime() - enqueueTime;
+		this.runningCount--;
+		this.completedCount++;
+		this.totalLatencyNanos += latency;
+		this.maxLatencyNanos = Math.max(this.maxLatencyNanos, latency);
+	}
+
+	/**
+	 * Returns the number of tasks waiting in the stage queue.
+	 * 
+	 * @return The number of tasks waiting in the stage queue.
+	 */
+	public synchronized int getQueueDepth() {
+		return this.queuedCount;
+	}
+
+	/**
+	 * Returns the number of running tasks.
+	 * 
+	 * @return The number of running tasks.
+	 */
+	public synchronized int getRunningCount() {
+		return this.runningCount;
+	}
+
+	/**
+	 * Returns the number of completed tasks.
+	 * 
+	 * @return The number of completed tasks.
+	 */
+	public synchronized long getCompletedCount() {
+		return this.completedCount;
+	}
+
+	/**
+	 * Returns the average latency of the completed tasks, including the time
+	 * spent in the stage queue.
+	 * 
+	 * @return The average latency in milliseconds.
+	 */
+	public synchronized long getAverageLatencyMillis() {
+		if (this.completedCount == 0)
+			return 0;
+		return this.totalLatencyNanos / this.completedCount / 1000000;
+	}
+
+	/**
+	 * Returns the maximal latency of the completed tasks, including the time
+	 * spent in the stage queue.
+	 * 
+	 * @return The maximal latency in milliseconds.
+	 */
+	public synchronized long getMaxLatencyMillis() {
+		return this.maxLatencyNanos / 1000000;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return this.name + ": " + this.queuedCount + " queued, "
+				+ this.runningCount + " running, " + this.completedCount
+				+ " completed, " + this.getAverageLatencyMillis()
+				+ " ms average, " + this.getMaxLatencyMillis() + " ms max";
+	}
+}
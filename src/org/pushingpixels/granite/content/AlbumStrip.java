@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.content;
+
+import org.eclipse.swt.widgets.Control;
+
+/**
+ * Shows the albums of a {@link Stage2Components} container. The albums and
+ * the leading position are owned by the container, and the strip is notified
+ * when they change.
+ * 
+ * @author Kirill Grouchnikov
+ */
+interface AlbumStrip {
+	/**
+	 * Returns the control that shows the albums.
+	 * 
+	 * @return The control that shows the albums.
+	 */
+	Control getControl();
+
+	/**
+	 * Is called when albums have been added to the container. Must be called
+	 * on the UI thread.
+	 * 
+	 * @param firstIndex
+	 *            The index of the first added album.
+	 * @param lastIndex
+	 *            The index of the last added album.
+	 */
+	void albumsAdded(int firstIndex, int lastIndex);
+
+	/**
+	 * Is called when the leading position of the container has changed, and
+	 * when an animated scroll has settled. Must be called on the UI thread.
+	 */
+	void leadingPositionChanged();
+
+	/**
+	 * Is called on every step of an animated scroll. The last step is followed
+	 * by {@link #leadingPositionChanged()}. Must be called on the UI thread.
+	 */
+	void leadingPositionScrolled();
+}
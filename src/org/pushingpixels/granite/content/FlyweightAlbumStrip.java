@@ -0,0 +1,571 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.content;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.*;
+import org.eclipse.swt.graphics.*;
+import org.eclipse.swt.widgets.*;
+import org.pushingpixels.granite.AlbumOverviewComponent;
+import org.pushingpixels.granite.FrameScheduler;
+import org.pushingpixels.granite.GraphicsResources;
+import org.pushingpixels.granite.ResourceTracker;
+import org.pushingpixels.granite.art.AlbumArtCache;
+import org.pushingpixels.granite.art.ImageUploadQueue;
+import org.pushingpixels.granite.backend.FlightHandle;
+import org.pushingpixels.granite.data.Album;
+import org.pushingpixels.granite.details.DetailsPrefetcher;
+import org.pushingpixels.granite.details.DetailsWindowManager;
+
+/**
+ * Album strip that paints all the albums on a single canvas. The per-album
+ * state is kept in arrays indexed by the album position, and the fade
+ * animations of all the albums are driven by a single frame task. Only
+ * the albums around the visible area have their album art loaded.
+ * 
+ * @author Kirill Grouchnikov
+ */
+class FlyweightAlbumStrip extends Canvas implements AlbumStrip {
+	/**
+	 * The container that owns the albums.
+	 */
+	Stage2Components owner;
+
+	/**
+	 * The alpha value of each album.
+	 */
+	int[] alphas;
+
+	/**
+	 * The alpha value of the album art of each album.
+	 */
+	float[] imageAlphas;
+
+	/**
+	 * The alpha value of the rollover border of each album.
+	 */
+	float[] borderAlphas;
+
+	/**
+	 * The album art of each album. Only the albums in the live range have
+	 * their album art.
+	 */
+	Image[] images;
+
+	/**
+	 * The album art request of each album in the live range.
+	 */
+	FlightHandle<?>[] artHandles;
+
+	/**
+	 * The pending album art upload of each album in the live range.
+	 */
+	Future<?>[] artUploads;
+
+	/**
+	 * The index of the first album in the live range.
+	 */
+	int firstLive;
+
+	/**
+	 * The index of the last album in the live range.
+	 */
+	int lastLive;
+
+	/**
+	 * The horizontal pixel offset of the painted albums. Is only updated when
+	 * the painted albums are moved to the new leading position of the owner.
+	 */
+	int scrollOffset;
+
+	/**
+	 * The index of the album under the mouse, or -1 if there is none.
+	 */
+	int hoverIndex;
+
+	/**
+	 * Indicates whether the rollover border of {@link #hoverIndex} is getting
+	 * stronger or weaker.
+	 */
+	boolean isHoverBorderRising;
+
+	/**
+	 * Drives the fade animations of all the albums. Runs only while there is
+	 * something to animate.
+	 */
+	FrameScheduler.FrameTask pulseTask;
+
+	/**
+	 * Indicates whether the {@link #pulseTask} is running.
+	 */
+	boolean isPulsing;
+
+	/**
+	 * The time of the last pulse.
+	 */
+	long lastPulseTime;
+
+	/**
+	 * The cursor shown over the albums.
+	 */
+	Cursor handCursor;
+
+	/**
+	 * Creates a new album strip.
+	 * 
+	 * @param owner
+	 *            The container that owns the albums.
+	 */
+	public FlyweightAlbumStrip(Stage2Components owner) {
+		super(owner, SWT.DOUBLE_BUFFERED | SWT.TRANSPARENT);
+		this.owner = owner;
+		this.alphas = new int[0];
+		this.imageAlphas = new float[0];
+		this.borderAlphas = new float[0];
+		this.images = new Image[0];
+		this.artHandles = new FlightHandle<?>[0];
+		this.artUploads = new Future<?>[0];
+		this.firstLive = 0;
+		this.lastLive = -1;
+		this.hoverIndex = -1;
+		this.handCursor = GraphicsResources.get(owner.getDisplay()).getCursor(
+				SWT.CURSOR_HAND);
+
+		this.pulseTask = new FrameScheduler.FrameTask() {
+			@Override
+			public boolean runFrame(long frameTime) {
+				return pulse();
+			}
+		};
+
+		this.addPaintListener(new PaintListener() {
+			@Override
+			public void paintControl(PaintEvent e) {
+				paintAlbums(e);
+			}
+		});
+
+		this.addMouseMoveListener(new MouseMoveListener() {
+			@Override
+			public void mouseMove(MouseEvent e) {
+				setHoverIndex(getAlbumIndexAt(e.x, e.y));
+			}
+		});
+
+		this.addMouseTrackListener(new MouseTrackAdapter() {
+			@Override
+			public void mouseExit(MouseEvent e) {
+				setHoverIndex(-1);
+			}
+		});
+
+		this.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseUp(MouseEvent e) {
+				int index = getAlbumIndexAt(e.x, e.y);
+				if (index >= 0) {
+					DetailsWindowManager.show(getShell(),
+							FlyweightAlbumStrip.this.owner.albums.get(index));
+				} else {
+					DetailsWindowManager.disposeCurrentlyShowing();
+				}
+			}
+		});
+
+		this.addControlListener(new ControlAdapter() {
+			@Override
+			public void controlResized(ControlEvent e) {
+				updateLiveRange();
+			}
+		});
+
+		this.addDisposeListener(new DisposeListener() {
+			@Override
+			public void widgetDisposed(DisposeEvent e) {
+				FrameScheduler.getDefault().removeFrameTask(pulseTask);
+				for (int i = firstLive; i <= lastLive; i++) {
+					releaseArt(i);
+				}
+				GraphicsResources.get(e.display).release(handCursor);
+			}
+		});
+	}
+
+	@Override
+	public Control getControl() {
+		return this;
+	}
+
+	@Override
+	public void albumsAdded(int firstIndex, int lastIndex) {
+		this.ensureCapacity(lastIndex + 1);
+		this.updateLiveRange();
+		boolean isLive = false;
+		for (int i = firstIndex; i <= lastIndex; i++) {
+			if ((i >= this.firstLive) && (i <= this.lastLive)) {
+				// fade in the new album
+				this.alphas[i] = 0;
+				isLive = true;
+			} else {
+				this.alphas[i] = 255;
+			}
+		}
+		if (isLive) {
+			this.startPulsing();
+			FrameScheduler.getDefault().requestRedraw(this);
+		}
+	}
+
+	@Override
+	public void leadingPositionChanged() {
+		// the mouse is over another album now
+		this.setHoverIndex(-1);
+		this.scrollOffset = this.owner.getScrollOffset();
+		this.updateLiveRange();
+		FrameScheduler.getDefault().requestRedraw(this);
+	}
+
+	@Override
+	public void leadingPositionScrolled() {
+		if (!Stage2Components.BLIT_SCROLLING) {
+			this.leadingPositionChanged();
+			return;
+		}
+
+		this.setHoverIndex(-1);
+		int newScrollOffset = this.owner.getScrollOffset();
+		int dx = this.scrollOffset - newScrollOffset;
+		Rectangle bounds = this.getBounds();
+		if ((dx == 0) || (Math.abs(dx) >= bounds.width)) {
+			this.scrollOffset = newScrollOffset;
+			this.updateLiveRange();
+			if (dx != 0)
+				FrameScheduler.getDefault().requestRedraw(this);
+			return;
+		}
+
+		// paint the pending damage at the previous offset, then move the
+		// painted albums by the pixel delta so that only the exposed columns
+		// are painted at the new offset
+		this.update();
+		this.scrollOffset = newScrollOffset;
+		this.updateLiveRange();
+		this.scroll(dx, 0, 0, 0, bounds.width, bounds.height, false);
+	}
+
+	/**
+	 * Grows the per-album arrays to hold the specified number of albums.
+	 */
+	private void ensureCapacity(int count) {
+		if (this.alphas.length >= count)
+			return;
+		int capacity = Math.max(count, 2 * this.alphas.length);
+		this.alphas = Arrays.copyOf(this.alphas, capacity);
+		this.imageAlphas = Arrays.copyOf(this.imageAlphas, capacity);
+		this.borderAlphas = Arrays.copyOf(this.borderAlphas, capacity);
+		this.images = Arrays.copyOf(this.images, capacity);
+		this.artHandles = Arrays.copyOf(this.artHandles, capacity);
+		this.artUploads = Arrays.copyOf(this.artUploads, capacity);
+	}
+
+	/**
+	 * Recomputes the range of the albums around the visible area. The album art
+	 * of the albums that left the range is released, and the album art of the
+	 * albums that entered the range is requested.
+	 */
+	private void updateLiveRange() {
+		int count = this.owner.albums.size();
+		int leading = (int) Math.floor(this.owner.leadingPosition);
+		int first = Math.max(0, leading - Stage2Components.VIEWPORT_MARGIN);
+		int last = Math.min(count - 1, leading + this.getBounds().width
+				/ Stage2Components.STRIDE + 1
+				+ Stage2Components.VIEWPORT_MARGIN);
+
+		for (int i = this.firstLive; i <= this.lastLive; i++) {
+			if ((i < first) || (i > last))
+				this.releaseArt(i);
+		}
+		this.firstLive = first;
+		this.lastLive = last;
+		for (int i = first; i <= last; i++) {
+			if (this.artHandles[i] == null)
+				this.requestArt(i);
+		}
+	}
+
+	/**
+	 * Requests the album art of the specified album. The album art that is
+	 * already in the album art cache is shown right away, otherwise it is
+	 * picked up by the pulse task, queued for upload and then faded in.
+	 */
+	private void requestArt(int index) {
+		Album album = this.owner.albums.get(index);
+		this.artHandles[index] = AlbumArtCache.getDefault()
+				.getOverviewArtAsync(album.asin,
+						AlbumOverviewComponent.OVERVIEW_IMAGE_DIM,
+						this.owner.createFetchPriority(index));
+		if (this.artHandles[index].isDone()) {
+			this.installArt(index);
+			this.imageAlphas[index] = 1.0f;
+		} else {
+			this.startPulsing();
+		}
+	}
+
+	/**
+	 * Creates the album art image of the specified album from its completed
+	 * request.
+	 */
+	private void installArt(int index) {
+		ImageData imageData = this.getArtData(index);
+		if (imageData != null)
+			this.images[index] = ResourceTracker.track(new Image(this
+					.getDisplay(), imageData));
+	}
+
+	/**
+	 * Queues the album art of the specified album for upload. The album art
+	 * is faded in once it has been uploaded.
+	 */
+	private void uploadArt(final int index) {
+		ImageData imageData = this.getArtData(index);
+		if (imageData == null)
+			return;
+		final FlightHandle<?> artHandle = this.artHandles[index];
+		this.artUploads[index] = ImageUploadQueue.getDefault().upload(
+				imageData, new ImageUploadQueue.UploadCallback() {
+					@Override
+					public void uploaded(Image image) {
+						if (isDisposed() || (artHandles[index] != artHandle)) {
+							// the album has left the live range
+							ResourceTracker.dispose(image);
+							return;
+						}
+						images[index] = image;
+						startPulsing();
+					}
+				});
+	}
+
+	/**
+	 * Returns the album art data of the specified album from its completed
+	 * request.
+	 */
+	private ImageData getArtData(int index) {
+		try {
+			return (ImageData) this.artHandles[index].get();
+		} catch (Exception exc) {
+			// keep a completed request in place so that the album art is not
+			// requested again while the album is in the live range
+			this.artHandles[index] = FlightHandle.completed(null);
+			return null;
+		}
+	}
+
+	/**
+	 * Cancels the album art request and disposes the album art of the
+	 * specified album.
+	 */
+	private void releaseArt(int index) {
+		if (this.artHandles[index] != null) {
+			this.artHandles[index].cancel(true);
+			this.artHandles[index] = null;
+		}
+		if (this.artUploads[index] != null) {
+			this.artUploads[index].cancel(false);
+			this.artUploads[index] = null;
+		}
+		if (this.images[index] != null) {
+			ResourceTracker.dispose(this.images[index]);
+			this.images[index] = null;
+		}
+		this.imageAlphas[index] = 0.0f;
+		this.borderAlphas[index] = 0.0f;
+	}
+
+	private void setHoverIndex(int hoverIndex) {
+		if (this.hoverIndex == hoverIndex)
+			return;
+		DetailsPrefetcher prefetcher = DetailsPrefetcher.getDefault();
+		if (this.hoverIndex >= 0)
+			prefetcher.hoverEnded(this.owner.albums.get(this.hoverIndex));
+		if (hoverIndex >= 0)
+			prefetcher.hoverStarted(this.owner.albums.get(hoverIndex));
+		this.hoverIndex = hoverIndex;
+		this.isHoverBorderRising = true;
+		this.setCursor((hoverIndex >= 0) ? this.handCursor : null);
+		this.startPulsing();
+	}
+
+	private void startPulsing() {
+		if (this.isPulsing)
+			return;
+		this.isPulsing = true;
+		this.lastPulseTime = System.currentTimeMillis();
+		FrameScheduler.getDefault().addFrameTask(this.pulseTask);
+	}
+
+	/**
+	 * Advances the fade animations of the albums in the live range, and queues
+	 * the album art of the completed requests for upload.
+	 * 
+	 * @return <code>false</code> when there is nothing left to animate.
+	 */
+	private boolean pulse() {
+		if (this.isDisposed())
+			return false;
+
+		long now = System.currentTimeMillis();
+		long delta = now - this.lastPulseTime;
+		this.lastPulseTime = now;
+
+		boolean isAnimating = false;
+		boolean isChanged = false;
+		for (int i = this.firstLive; i <= this.lastLive; i++) {
+			if (this.alphas[i] < 255) {
+				// fade in the album over one second
+				this.alphas[i] = (int) Math.min(255, this.alphas[i] + 255
+						* delta / 1000);
+				isAnimating = true;
+				isChanged = true;
+			}
+
+			if ((this.images[i] == null) && (this.artHandles[i] != null)
+					&& (this.artUploads[i] == null)) {
+				if (this.artHandles[i].isDone()) {
+					this.uploadArt(i);
+				} else {
+					isAnimating = true;
+				}
+			}
+			if ((this.images[i] != null) && (this.imageAlphas[i] < 1.0f)) {
+				// fade in the album art over half a second
+				this.imageAlphas[i] = Math.min(1.0f, this.imageAlphas[i]
+						+ delta / 500.0f);
+				isAnimating = true;
+				isChanged = true;
+			}
+
+			// pulsate the rollover border of the album under the mouse, and
+			// fade out the rollover border of the other albums
+			float borderStep = 0.6f * delta / 800.0f;
+			if (i == this.hoverIndex) {
+				if (this.isHoverBorderRising) {
+					this.borderAlphas[i] = Math.min(0.6f, this.borderAlphas[i]
+							+ borderStep);
+					if (this.borderAlphas[i] == 0.6f)
+						this.isHoverBorderRising = false;
+				} else {
+					this.borderAlphas[i] = Math.max(0.0f, this.borderAlphas[i]
+							- borderStep);
+					if (this.borderAlphas[i] == 0.0f)
+						this.isHoverBorderRising = true;
+				}
+				isAnimating = true;
+				isChanged = true;
+			} else if (this.borderAlphas[i] > 0.0f) {
+				this.borderAlphas[i] = Math.max(0.0f, this.borderAlphas[i]
+						- borderStep);
+				isAnimating = true;
+				isChanged = true;
+			}
+		}
+
+		if (isChanged)
+			FrameScheduler.getDefault().requestRedraw(this);
+		if (!isAnimating)
+			this.isPulsing = false;
+		return isAnimating;
+	}
+
+	/**
+	 * Returns the vertical position of the albums.
+	 */
+	private int getAlbumY() {
+		return (this.owner.getBounds().height - AlbumOverviewComponent.DEFAULT_HEIGHT) / 2;
+	}
+
+	/**
+	 * Returns the index of the album at the specified point.
+	 * 
+	 * @param x
+	 *            X coordinate in the strip.
+	 * @param y
+	 *            Y coordinate in the strip.
+	 * @return The index of the album at the specified point, or -1 if there is
+	 *         no album there.
+	 */
+	private int getAlbumIndexAt(int x, int y) {
+		int albumY = this.getAlbumY();
+		if ((y < albumY)
+				|| (y >= albumY + AlbumOverviewComponent.DEFAULT_HEIGHT))
+			return -1;
+
+		int index = (int) Math.floor((float) (x + this.scrollOffset)
+				/ Stage2Components.STRIDE);
+		if ((index < 0) || (index >= this.owner.albums.size()))
+			return -1;
+		int albumX = index * Stage2Components.STRIDE - this.scrollOffset;
+		if (x - albumX >= AlbumOverviewComponent.DEFAULT_WIDTH)
+			return -1;
+		return index;
+	}
+
+	/**
+	 * Paints the albums in the live range that intersect the damaged area.
+	 */
+	private void paintAlbums(PaintEvent e) {
+		List<Album> albums = this.owner.albums;
+		int y = this.getAlbumY();
+
+		GC gc = e.gc;
+		Transform transform = new Transform(e.display);
+		for (int i = this.firstLive; i <= this.lastLive; i++) {
+			int x = i * Stage2Components.STRIDE - this.scrollOffset;
+			if ((x + AlbumOverviewComponent.DEFAULT_WIDTH <= e.x)
+					|| (x >= e.x + e.width))
+				continue;
+
+			transform.identity();
+			transform.translate(x, y);
+			gc.setTransform(transform);
+			Album album = albums.get(i);
+			AlbumOverviewComponent.paintOverview(this, gc, album.name,
+					album.releaseDate, this.images[i], this.alphas[i],
+					this.imageAlphas[i], this.borderAlphas[i]);
+		}
+		gc.setTransform(null);
+		transform.dispose();
+	}
+}
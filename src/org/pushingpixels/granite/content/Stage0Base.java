@@ -34,8 +34,9 @@ import org.eclipse.swt.events.PaintEvent;
 import org.eclipse.swt.events.PaintListener;
 import org.eclipse.swt.graphics.*;
 import org.eclipse.swt.widgets.*;
+import org.pushingpixels.granite.FrameRepaintCallback;
+import org.pushingpixels.granite.GraphicsResources;
 import org.pushingpixels.trident.Timeline;
-import org.pushingpixels.trident.swt.SWTRepaintCallback;
 
 /**
  * The basis of the album scroller container. Provides the functionality of:
@@ -94,7 +95,7 @@ public class Stage0Base extends Canvas {
 		// fade in the container
 		Timeline shownTimeline = new Timeline(Stage0Base.this);
 		shownTimeline.addPropertyToInterpolate("alpha", 0, 255);
-		shownTimeline.addCallback(new SWTRepaintCallback(Stage0Base.this));
+		shownTimeline.addCallback(new FrameRepaintCallback(Stage0Base.this));
 		shownTimeline.setDuration(500);
 		shownTimeline.play();
 
@@ -111,9 +112,12 @@ public class Stage0Base extends Canvas {
 				gc.setAlpha(255);
 				gc.setAntialias(SWT.OFF);
 
-				gc.setBackground(new Color(gc.getDevice(), 40, 40, 40));
+				GraphicsResources resources = GraphicsResources.get(e.display);
+				Color background = resources.getColor(40, 40, 40);
+				gc.setBackground(background);
 				// TODO: use round rectangle for soft corners
 				gc.fillRectangle(0, 0, width, height);
+				resources.release(background);
 			}
 		});
 	}
@@ -34,12 +34,13 @@ import org.eclipse.swt.events.PaintEvent;
 import org.eclipse.swt.events.PaintListener;
 import org.eclipse.swt.graphics.*;
 import org.eclipse.swt.widgets.*;
-import org.pushingpixels.granite.GraniteUtils;
+import org.pushingpixels.granite.FrameRepaintCallback;
+import org.pushingpixels.granite.GraphicsResources;
+import org.pushingpixels.granite.ResourceTracker;
 import org.pushingpixels.trident.Timeline;
 import org.pushingpixels.trident.Timeline.RepeatBehavior;
 import org.pushingpixels.trident.Timeline.TimelineState;
 import org.pushingpixels.trident.callback.UIThreadTimelineCallbackAdapter;
-import org.pushingpixels.trident.swt.SWTRepaintCallback;
 
 /**
  * Adds the following functionality to the album scroller container:
@@ -92,6 +93,22 @@ public class Stage1LoadingProgress extends Stage0Base {
 	 * @author Kirill Grouchnikov
 	 */
 	protected static class ProgressBarIndicator extends Canvas {
+		private static final RGB FILL1 = new RGB(156, 208, 221);
+
+		private static final RGB FILL2 = new RGB(101, 183, 243);
+
+		private static final RGB FILL3 = new RGB(67, 169, 241);
+
+		private static final RGB FILL4 = new RGB(138, 201, 247);
+
+		private static final RGB STRIPE1 = new RGB(36, 155, 239);
+
+		private static final RGB STRIPE2 = new RGB(17, 145, 238);
+
+		private static final RGB STRIPE3 = new RGB(15, 56, 200);
+
+		private static final RGB STRIPE4 = new RGB(3, 133, 219);
+
 		/**
 		 * The current position of the {@link #loadingBarLoopTimeline}.
 		 */
@@ -122,54 +139,43 @@ public class Stage1LoadingProgress extends Stage0Base {
 						int height = getBounds().height;
 
 						GC gc = e.gc;
+						GraphicsResources resources = GraphicsResources
+								.get(e.display);
 						gc.setAntialias(SWT.ON);
 						gc.setAlpha(loadingBarAlpha);
 
-						Region clipping = new Region(e.display);
+						Region clipping = ResourceTracker.track(new Region(
+								e.display));
 						gc.getClipping(clipping);
 
 						int contourRadius = 8;
 
 						// create a round rectangle clip to paint the inner part
 						// of the progress indicator
-						Path clipPath = new GraniteUtils.RoundRectangle(
-								e.display, 0, 0, width, height, contourRadius);
+						Path clipPath = resources.getRoundRectangle(0, 0,
+								width, height, contourRadius);
 
 						gc.setClipping(clipPath);
 
-						Color fill1 = new Color(e.display, 156, 208, 221);
-						Color fill2 = new Color(e.display, 101, 183, 243);
-						Pattern pFill1 = new Pattern(e.display, 0, 0, 0,
-								height / 2.0f, fill1, loadingBarAlpha, fill2,
-								loadingBarAlpha);
+						// the gradients are opaque, so that they are shared
+						// by all the frames of the fade. The fade itself
+						// comes from the alpha of the graphics context.
+						Pattern pFill1 = resources.getLinearGradient(0, 0, 0,
+								height / 2.0f, FILL1, 255, FILL2, 255);
 						gc.setBackgroundPattern(pFill1);
 						gc.fillRectangle(0, 0, width, height / 2);
-						fill1.dispose();
-						fill2.dispose();
-						pFill1.dispose();
-
-						Color fill3 = new Color(e.display, 67, 169, 241);
-						Color fill4 = new Color(e.display, 138, 201, 247);
-						Pattern pFill2 = new Pattern(e.display, 0,
-								height / 2.0f, 0, height, fill3,
-								loadingBarAlpha, fill4, loadingBarAlpha);
+
+						Pattern pFill2 = resources.getLinearGradient(0,
+								height / 2.0f, 0, height, FILL3, 255, FILL4,
+								255);
 						gc.setBackgroundPattern(pFill2);
 						gc.fillRectangle(0, height / 2, width, height / 2);
-						fill3.dispose();
-						fill4.dispose();
-						pFill2.dispose();
 
 						int stripeCellWidth = 25;
-						Color stripe1 = new Color(e.display, 36, 155, 239);
-						Color stripe2 = new Color(e.display, 17, 145, 238);
-						Pattern pStripe1 = new Pattern(e.display, 0, 0, 0,
-								height / 2.0f, stripe1, loadingBarAlpha,
-								stripe2, loadingBarAlpha);
-						Color stripe3 = new Color(e.display, 15, 56, 200);
-						Color stripe4 = new Color(e.display, 3, 133, 219);
-						Pattern pStripe2 = new Pattern(e.display, 0, 0, 0,
-								height / 2.0f, stripe3, loadingBarAlpha,
-								stripe4, loadingBarAlpha);
+						Pattern pStripe1 = resources.getLinearGradient(0, 0,
+								0, height / 2.0f, STRIPE1, 255, STRIPE2, 255);
+						Pattern pStripe2 = resources.getLinearGradient(0, 0,
+								0, height / 2.0f, STRIPE3, 255, STRIPE4, 255);
 
 						int stripeWidth = 10;
 						gc.setLineAttributes(new LineAttributes(9.0f));
@@ -201,31 +207,31 @@ public class Stage1LoadingProgress extends Stage0Base {
 											stripeX - stripeCellWidth
 													- stripeWidth / 2, height });
 						}
-						stripe1.dispose();
-						stripe2.dispose();
-						stripe3.dispose();
-						stripe4.dispose();
-						pStripe1.dispose();
-						pStripe2.dispose();
+						gc.setBackgroundPattern(null);
+						resources.release(pFill1);
+						resources.release(pFill2);
+						resources.release(pStripe1);
+						resources.release(pStripe2);
 
 						// restore the original clipping to paint the contour
 						gc.setClipping(clipping);
-						clipping.dispose();
+						ResourceTracker.dispose(clipping);
+						resources.release(clipPath);
 
 						gc.setForeground(e.display
 								.getSystemColor(SWT.COLOR_GRAY));
 						float lineWeight = 1.6f;
 						gc.setLineAttributes(new LineAttributes(lineWeight));
 
-						Path outline = new GraniteUtils.RoundRectangle(
-								e.display, lineWeight / 2.0f - 1,
-								lineWeight / 2.0f - 1, width - 1 - lineWeight
-										+ 2, height - 1 - lineWeight + 2,
-								contourRadius - lineWeight / 2);
+						Path outline = resources.getRoundRectangle(
+								lineWeight / 2.0f - 1, lineWeight / 2.0f - 1,
+								width - 1 - lineWeight + 2, height - 1
+										- lineWeight + 2, contourRadius
+										- lineWeight / 2);
 
 						gc.drawPath(outline);
 
-						outline.dispose();
+						resources.release(outline);
 					}
 				}
 			});
@@ -285,7 +291,7 @@ public class Stage1LoadingProgress extends Stage0Base {
 		this.loadingBarLoopTimeline = new Timeline(this.progressIndicator);
 		this.loadingBarLoopTimeline.addPropertyToInterpolate(
 				"loadingBarLoopPosition", 0.0f, 1.0f);
-		this.loadingBarLoopTimeline.addCallback(new SWTRepaintCallback(this));
+		this.loadingBarLoopTimeline.addCallback(new FrameRepaintCallback(this));
 		this.loadingBarLoopTimeline.setDuration(750);
 
 		// create the fade timeline
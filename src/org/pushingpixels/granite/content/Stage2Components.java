@@ -30,14 +30,15 @@
 package org.pushingpixels.granite.content;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.eclipse.swt.SWT;
-import org.eclipse.swt.events.MouseEvent;
-import org.eclipse.swt.events.MouseWheelListener;
+import org.eclipse.swt.events.*;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.widgets.*;
 import org.pushingpixels.granite.AlbumOverviewComponent;
+import org.pushingpixels.granite.backend.FetchPriority;
 import org.pushingpixels.granite.data.Album;
 import org.pushingpixels.granite.details.DetailsWindowManager;
 
@@ -45,7 +46,7 @@ import org.pushingpixels.granite.details.DetailsWindowManager;
  * Adds the following functionality to the album scroller container:
  * 
  * <ul>
- * <li>Adding album overview components</li>
+ * <li>Adding albums. The albums are shown by an {@link AlbumStrip}</li>
  * <li>Scrolling overview components with mouse wheel and left / right arrow
  * keys</li>
  * </ul>
@@ -54,10 +55,32 @@ import org.pushingpixels.granite.details.DetailsWindowManager;
  */
 public class Stage2Components extends Stage1LoadingProgress {
 	/**
-	 * The list of album overview components. Each component added with
-	 * {@link #addOverviewComp(Item, ActivationCallback)} is added to this list.
+	 * The number of albums on each side of the visible area that are kept
+	 * live by the album strip.
 	 */
-	List<AlbumOverviewComponent> comps;
+	static final int VIEWPORT_MARGIN = 2;
+
+	/**
+	 * The horizontal distance between the left edges of two adjacent albums.
+	 */
+	static final int STRIDE = AlbumOverviewComponent.DEFAULT_WIDTH + 10;
+
+	/**
+	 * Indicates whether the animated scrolling moves the already painted
+	 * albums with {@link Canvas#scroll(int, int, int, int, int, int, boolean)}
+	 * instead of laying out and repainting the album strip on every step. Is
+	 * off by default, and can be turned on with
+	 * <code>-Dgranite.blitScrolling=true</code>. Compare the two with
+	 * <code>-Dgranite.scrollStats=true</code>.
+	 */
+	static final boolean BLIT_SCROLLING = Boolean
+			.getBoolean("granite.blitScrolling");
+
+	/**
+	 * The list of albums. Each album added with {@link #addAlbumItem(Album)}
+	 * is added to this list.
+	 */
+	List<Album> albums;
 
 	/**
 	 * Indicates which album overview component is displayed at the left edge of
@@ -68,7 +91,7 @@ public class Stage2Components extends Stage1LoadingProgress {
 	 * 
 	 * <p>
 	 * At the beginning the value is 0.0 - displaying the first entry in
-	 * {@link #comps} at the left edge. When scrolling to the next album, the
+	 * {@link #albums} at the left edge. When scrolling to the next album, the
 	 * value will become 1.0 (effectively pushing the first album over the left
 	 * edge). If the scrolling is animated, this value will be gradually
 	 * interpolated from 0.0 to 1.0.
@@ -79,12 +102,12 @@ public class Stage2Components extends Stage1LoadingProgress {
 	 * seamless scroll animation.
 	 * </p>
 	 */
-	float leadingPosition;
+	volatile float leadingPosition;
 
 	/**
-	 * Hosts the album components.
+	 * Shows the albums.
 	 */
-	Composite albumComponentsHolder;
+	AlbumStrip albumStrip;
 
 	/**
 	 * Creates the new container that can host album overview components.
@@ -94,10 +117,10 @@ public class Stage2Components extends Stage1LoadingProgress {
 	 */
 	public Stage2Components(Composite parent) {
 		super(parent);
-		this.comps = new ArrayList<AlbumOverviewComponent>();
+		this.albums = new ArrayList<Album>();
 
-		this.albumComponentsHolder = new Composite(this, SWT.TRANSPARENT);
-		this.progressIndicator.moveAbove(this.albumComponentsHolder);
+		this.albumStrip = this.createAlbumStrip();
+		this.progressIndicator.moveAbove(this.albumStrip.getControl());
 		this.setLayout(new Layout() {
 			@Override
 			protected void layout(Composite composite, boolean flushCache) {
@@ -105,7 +128,7 @@ public class Stage2Components extends Stage1LoadingProgress {
 				int h = composite.getBounds().height;
 
 				// set 10 pixel margin to clip the album art components
-				albumComponentsHolder.setBounds(10, 10, w - 20, h - 20);
+				albumStrip.getControl().setBounds(10, 10, w - 20, h - 20);
 
 				progressIndicator.setBounds((w - PROGRESS_WIDTH) / 2,
 						(h - PROGRESS_HEIGHT) / 2, PROGRESS_WIDTH,
@@ -155,57 +178,93 @@ public class Stage2Components extends Stage1LoadingProgress {
 				DetailsWindowManager.disposeCurrentlyShowing();
 			}
 		});
+	}
 
-		this.albumComponentsHolder.setLayout(new Layout() {
-			@Override
-			protected Point computeSize(Composite composite, int wHint,
-					int hHint, boolean flushCache) {
-				return new Point(wHint, hHint);
-			}
+	/**
+	 * Creates the album strip. The single-canvas strip is used when the
+	 * <code>granite.albumStrip</code> system property is set to
+	 * <code>flyweight</code>, and the strip with a component for every visible
+	 * album is used otherwise.
+	 * 
+	 * @return The album strip.
+	 */
+	AlbumStrip createAlbumStrip() {
+		if ("flyweight".equals(System.getProperty("granite.albumStrip")))
+			return new FlyweightAlbumStrip(this);
+		return new WidgetAlbumStrip(this);
+	}
 
+	/**
+	 * Returns the priority of the album art request for the specified album.
+	 * The album art of the albums closer to the (target) leading position is
+	 * loaded first.
+	 * 
+	 * @param index
+	 *            Album index.
+	 * @return The priority of the album art request.
+	 */
+	FetchPriority createFetchPriority(final int index) {
+		return new FetchPriority() {
 			@Override
-			protected void layout(Composite composite, boolean flushCache) {
-				if (comps.size() == 0)
-					return;
-
-				for (int i = 0; i < comps.size(); i++) {
-					float delta = i - leadingPosition;
-					// compute the left X based on the current leading position
-					int x = (int) (delta * (AlbumOverviewComponent.DEFAULT_WIDTH + 10));
-					comps
-							.get(i)
-							.setBounds(
-									x,
-									(getBounds().height - AlbumOverviewComponent.DEFAULT_HEIGHT) / 2,
-									AlbumOverviewComponent.DEFAULT_WIDTH,
-									AlbumOverviewComponent.DEFAULT_HEIGHT);
-				}
+			public float getPriority() {
+				return Math.abs(index - getTargetLeadingPosition());
 			}
-		});
+		};
 	}
 
 	/**
 	 * Adds the specified album item to this album container.
 	 * 
 	 * @param albumItem
-	 *            Description of the album item from the Amazon backend.
-	 * @return Thew matching album overview component.
+	 *            Description of the album item from the MusicBrainz backend.
+	 */
+	public void addAlbumItem(Album albumItem) {
+		this.addAlbumItems(Collections.singletonList(albumItem));
+	}
+
+	/**
+	 * Adds the specified album items to this album container. The album strip
+	 * is updated once for all the added items.
+	 * 
+	 * @param albumItems
+	 *            Descriptions of the album items from the MusicBrainz backend.
+	 */
+	public synchronized void addAlbumItems(List<Album> albumItems) {
+		if (albumItems.isEmpty())
+			return;
+		int firstIndex = this.albums.size();
+		this.albums.addAll(albumItems);
+		this.albumStrip.albumsAdded(firstIndex, this.albums.size() - 1);
+	}
+
+	/**
+	 * Returns the horizontal pixel offset of the albums for the current leading
+	 * position. The album at index <code>i</code> is shown at
+	 * <code>i * STRIDE - getScrollOffset()</code>.
+	 * 
+	 * @return The horizontal pixel offset of the albums.
+	 */
+	int getScrollOffset() {
+		return Math.round(this.leadingPosition * STRIDE);
+	}
+
+	/**
+	 * Returns the leading position that the albums are scrolled to. Note that
+	 * this method is called by the fetch scheduler off the UI thread.
+	 * 
+	 * @return The leading position that the albums are scrolled to.
 	 */
-	public synchronized AlbumOverviewComponent addAlbumItem(Album albumItem) {
-		AlbumOverviewComponent comp = new AlbumOverviewComponent(
-				this.albumComponentsHolder, albumItem);
-		this.comps.add(comp);
-		this.albumComponentsHolder.layout(new Control[] { comp });
-		return comp;
+	protected float getTargetLeadingPosition() {
+		return this.leadingPosition;
 	}
 
 	/**
 	 * Scrolls the albums to show the next album.
 	 */
 	protected void scrollToNext() {
-		if (this.leadingPosition < (this.comps.size() - 1)) {
+		if (this.leadingPosition < (this.albums.size() - 1)) {
 			this.leadingPosition++;
-			this.albumComponentsHolder.layout(true);
+			this.albumStrip.leadingPositionChanged();
 		}
 	}
 
@@ -215,7 +274,7 @@ public class Stage2Components extends Stage1LoadingProgress {
 	protected void scrollToPrevious() {
 		if (this.leadingPosition > 0) {
 			this.leadingPosition--;
-			this.albumComponentsHolder.layout(true);
+			this.albumStrip.leadingPositionChanged();
 		}
 	}
 }
@@ -29,8 +29,13 @@
  */
 package org.pushingpixels.granite.content;
 
+import java.util.List;
+
 import org.eclipse.swt.widgets.Composite;
-import org.pushingpixels.trident.Timeline;
+import org.pushingpixels.granite.FrameScheduler;
+import org.pushingpixels.granite.backend.StageStats;
+import org.pushingpixels.granite.data.Album;
+import org.pushingpixels.granite.details.NeighborhoodPrefetcher;
 
 /**
  * Adds the following functionality to the album scroller container:
@@ -38,27 +43,122 @@ import org.pushingpixels.trident.Timeline;
  * <ul>
  * <li>Animated scrolling of album overview components with mouse wheel and left
  * / right arrow keys</li>
+ * <li>Warming the details of the albums around the visible area once the
+ * scrolling settles, see {@link NeighborhoodPrefetcher}</li>
  * </ul>
  * 
+ * <p>
+ * Running with <code>-Dgranite.scrollStats=true</code> measures the time of
+ * every scroll step, including the paint of the exposed area, and prints the
+ * statistics when the scroll settles.
+ * </p>
+ * 
  * @author Kirill Grouchnikov
  */
 public class Stage3AnimatedScrolling extends Stage2Components {
+	/**
+	 * The angular frequency of the scroll spring. A critically damped spring
+	 * with this frequency covers 98% of the distance to its target in about
+	 * 250 milliseconds.
+	 */
+	static final float SPRING_FREQUENCY = 23.0f;
+
 	/**
 	 * Contains the target leading position - this is the index of the album
-	 * which should appear at the left edge once the current
-	 * {@link #scrollTimeline} is done. Note that the user scrolling can be done
-	 * in the middle of the current scrolling animation. In this case, the field
-	 * is updated with the new target index.
+	 * which should appear at the left edge once the {@link #scrollAnimator}
+	 * settles. Note that the user scrolling can be done in the middle of the
+	 * current scrolling animation. In this case, the field is updated with the
+	 * new target index, and the animation continues towards it from its
+	 * current position and velocity.
 	 */
-	float targetLeadingPosition;
+	volatile float targetLeadingPosition;
 
 	/**
-	 * The scroll timeline. Note that the user scrolling can be done in the
-	 * middle of the current scrolling animation. In this case, the current
-	 * timeline is cancelled, and a new one is created - this allows quick
-	 * scrolling with multiple mouse wheel / arrow events.
+	 * Moves the leading position towards {@link #targetLeadingPosition}. The
+	 * same animator is reused for all the scrolls.
 	 */
-	Timeline scrollTimeline;
+	ScrollAnimator scrollAnimator;
+
+	/**
+	 * The statistics of the scroll steps, or <code>null</code> if they are not
+	 * measured.
+	 */
+	StageStats scrollStats;
+
+	/**
+	 * Moves the leading position along a critically damped spring attached to
+	 * the target leading position. Runs as a frame task while the leading
+	 * position has not settled.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	class ScrollAnimator implements FrameScheduler.FrameTask {
+		/**
+		 * The velocity of the leading position, in albums per second.
+		 */
+		float velocity;
+
+		/**
+		 * The time of the last step.
+		 */
+		long lastFrameTime;
+
+		/**
+		 * Indicates whether this animator is running.
+		 */
+		boolean isRunning;
+
+		/**
+		 * Starts moving towards the current target, keeping the current
+		 * velocity if this animator is already running.
+		 */
+		void start() {
+			if (this.isRunning)
+				return;
+			this.isRunning = true;
+			this.velocity = 0.0f;
+			this.lastFrameTime = System.nanoTime();
+			FrameScheduler.getDefault().addFrameTask(this);
+		}
+
+		@Override
+		public boolean runFrame(long frameTime) {
+			if (isDisposed()) {
+				this.isRunning = false;
+				return false;
+			}
+
+			// cap the step so that a stalled frame does not jump
+			float dt = Math.min(0.05f,
+					(frameTime - this.lastFrameTime) / 1000000000.0f);
+			this.lastFrameTime = frameTime;
+
+			// the exact solution of the critically damped spring over this
+			// step, which is stable for any step length
+			float target = targetLeadingPosition;
+			float offset = leadingPosition - target;
+			float decay = (float) Math.exp(-SPRING_FREQUENCY * dt);
+			float temp = (this.velocity + SPRING_FREQUENCY * offset) * dt;
+			this.velocity = (this.velocity - SPRING_FREQUENCY * temp) * decay;
+			offset = (offset + temp) * decay;
+
+			if ((Math.abs(offset) < 0.002f)
+					&& (Math.abs(this.velocity) < 0.02f)) {
+				// the scroll has settled
+				this.isRunning = false;
+				this.velocity = 0.0f;
+				leadingPosition = target;
+				albumStrip.leadingPositionChanged();
+				warmNeighborhood();
+				if (scrollStats != null)
+					System.out.println(scrollStats);
+				return false;
+			}
+
+			setLeadingPosition(target + offset);
+			return true;
+		}
+	}
 
 	/**
 	 * Creates the new container that can animate the album scrolling.
@@ -69,13 +169,39 @@ public class Stage3AnimatedScrolling extends Stage2Components {
 	public Stage3AnimatedScrolling(Composite parent) {
 		super(parent);
 		this.targetLeadingPosition = 0;
+		this.scrollAnimator = new ScrollAnimator();
+		if (Boolean.getBoolean("granite.scrollStats"))
+			this.scrollStats = new StageStats("scroll step");
+	}
+
+	@Override
+	public synchronized void addAlbumItems(List<Album> albumItems) {
+		super.addAlbumItems(albumItems);
+		if (!this.scrollAnimator.isRunning)
+			this.warmNeighborhood();
+	}
+
+	/**
+	 * Moves the window of the {@link NeighborhoodPrefetcher} to the albums
+	 * that are visible at the current leading position.
+	 */
+	void warmNeighborhood() {
+		if (this.albums.isEmpty())
+			return;
+		int first = (int) this.leadingPosition;
+		int visibleCount = (this.albumStrip.getControl().getBounds().width
+				+ STRIDE - 1) / STRIDE;
+		int last = Math.min(this.albums.size() - 1, first
+				+ Math.max(1, visibleCount) - 1);
+		NeighborhoodPrefetcher.getDefault().setVisibleRange(this.albums,
+				first, last);
 	}
 
 	@Override
 	protected void scrollToNext() {
-		if (this.targetLeadingPosition < (this.comps.size() - 1)) {
+		if (this.targetLeadingPosition < (this.albums.size() - 1)) {
 			this.targetLeadingPosition++;
-			scrollContents();
+			this.scrollAnimator.start();
 		}
 	}
 
@@ -83,41 +209,34 @@ public class Stage3AnimatedScrolling extends Stage2Components {
 	protected void scrollToPrevious() {
 		if (this.targetLeadingPosition > 0) {
 			this.targetLeadingPosition--;
-			scrollContents();
+			this.scrollAnimator.start();
 		}
 	}
 
-	/**
-	 * Scrolls the contents of this container.
-	 */
-	private synchronized void scrollContents() {
-		if (this.scrollTimeline != null) {
-			// abort the playing scroll timeline
-			this.scrollTimeline.abort();
-		}
-
-		// and dynamically create a new one to change the
-		// leading position
-		this.scrollTimeline = new Timeline(this);
-		this.scrollTimeline
-				.addPropertyToInterpolate(Timeline.<Float> property(
-						"leadingPosition").fromCurrent().to(
-						this.targetLeadingPosition));
-		this.scrollTimeline.setDuration(250);
-
-		this.scrollTimeline.play();
+	@Override
+	protected float getTargetLeadingPosition() {
+		return this.targetLeadingPosition;
 	}
 
 	/**
-	 * Sets the new value for the leading position. This is called from
-	 * {@link #scrollTimeline}.
+	 * Sets the new value for the leading position. This is called on every
+	 * step of the {@link #scrollAnimator}.
 	 * 
 	 * @param leadingPosition
 	 *            The new value for the leading position.
 	 */
 	public void setLeadingPosition(float leadingPosition) {
 		this.leadingPosition = leadingPosition;
-		this.albumComponentsHolder.layout(true);
+		if (this.scrollStats == null) {
+			this.albumStrip.leadingPositionScrolled();
+			return;
+		}
+
+		long start = this.scrollStats.enqueued();
+		this.scrollStats.started();
+		this.albumStrip.leadingPositionScrolled();
+		this.albumStrip.getControl().update();
+		this.scrollStats.finished(start);
 	}
 
 	/**
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.content;
+
+import java.util.*;
+import java.util.List;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.MouseAdapter;
+import org.eclipse.swt.events.MouseEvent;
+import org.eclipse.swt.graphics.Point;
+import org.eclipse.swt.graphics.Rectangle;
+import org.eclipse.swt.widgets.*;
+import org.pushingpixels.granite.AlbumOverviewComponent;
+import org.pushingpixels.granite.data.Album;
+import org.pushingpixels.granite.details.DetailsWindowManager;
+
+/**
+ * Album strip that shows every album in its own {@link AlbumOverviewComponent}.
+ * Only the albums around the visible area have live components, which are
+ * recycled as the albums are scrolled. The strip is a {@link Canvas} so that
+ * the animated scrolling can move the painted components with
+ * {@link Canvas#scroll(int, int, int, int, int, int, boolean)}.
+ * 
+ * @author Kirill Grouchnikov
+ */
+class WidgetAlbumStrip extends Canvas implements AlbumStrip {
+	/**
+	 * The container that owns the albums.
+	 */
+	Stage2Components owner;
+
+	/**
+	 * The album overview components of the albums around the visible area,
+	 * keyed by album index.
+	 */
+	Map<Integer, AlbumOverviewComponent> liveComps;
+
+	/**
+	 * The album overview components that are not bound to any album and can be
+	 * reused.
+	 */
+	List<AlbumOverviewComponent> recycledComps;
+
+	/**
+	 * The index of the first album that is being added. The components of the
+	 * added albums are faded in.
+	 */
+	int addedFirst;
+
+	/**
+	 * The index of the last album that is being added.
+	 */
+	int addedLast;
+
+	/**
+	 * The index of the last album that got a live component in the last
+	 * layout.
+	 */
+	int layoutLast;
+
+	/**
+	 * The horizontal pixel offset of the album components.
+	 */
+	int scrollOffset;
+
+	/**
+	 * The integer part of the leading position that the live components were
+	 * picked for in the last layout.
+	 */
+	int layoutLeading;
+
+	/**
+	 * Creates a new album strip.
+	 * 
+	 * @param owner
+	 *            The container that owns the albums.
+	 */
+	public WidgetAlbumStrip(Stage2Components owner) {
+		super(owner, SWT.TRANSPARENT);
+		this.owner = owner;
+		this.liveComps = new HashMap<Integer, AlbumOverviewComponent>();
+		this.recycledComps = new ArrayList<AlbumOverviewComponent>();
+		this.addedFirst = -1;
+		this.addedLast = -1;
+		this.layoutLast = -1;
+
+		this.setLayout(new Layout() {
+			@Override
+			protected Point computeSize(Composite composite, int wHint,
+					int hHint, boolean flushCache) {
+				return new Point(wHint, hHint);
+			}
+
+			@Override
+			protected void layout(Composite composite, boolean flushCache) {
+				List<Album> albums = WidgetAlbumStrip.this.owner.albums;
+				int count = albums.size();
+				if (count == 0)
+					return;
+
+				// only the albums around the visible area get live
+				// components
+				int leading = (int) Math
+						.floor(WidgetAlbumStrip.this.owner.leadingPosition);
+				int first = Math.max(0, leading
+						- Stage2Components.VIEWPORT_MARGIN);
+				int last = Math.min(count - 1, leading
+						+ composite.getBounds().width / Stage2Components.STRIDE
+						+ 1 + Stage2Components.VIEWPORT_MARGIN);
+				layoutLeading = leading;
+				layoutLast = last;
+				scrollOffset = WidgetAlbumStrip.this.owner.getScrollOffset();
+
+				for (Iterator<Map.Entry<Integer, AlbumOverviewComponent>> it = liveComps
+						.entrySet().iterator(); it.hasNext();) {
+					Map.Entry<Integer, AlbumOverviewComponent> entry = it
+							.next();
+					int index = entry.getKey();
+					if ((index < first) || (index > last)) {
+						AlbumOverviewComponent comp = entry.getValue();
+						comp.clearAlbum();
+						comp.setVisible(false);
+						recycledComps.add(comp);
+						it.remove();
+					}
+				}
+
+				int y = (WidgetAlbumStrip.this.owner.getBounds().height - AlbumOverviewComponent.DEFAULT_HEIGHT) / 2;
+				for (int i = first; i <= last; i++) {
+					AlbumOverviewComponent comp = liveComps.get(i);
+					if (comp == null) {
+						comp = obtainComponent();
+						comp.setAlbum(albums.get(i), WidgetAlbumStrip.this.owner
+								.createFetchPriority(i), (i >= addedFirst)
+								&& (i <= addedLast));
+						comp.setVisible(true);
+						liveComps.put(i, comp);
+					}
+					// compute the left X based on the current leading position
+					int x = i * Stage2Components.STRIDE - scrollOffset;
+					comp.setBounds(x, y, AlbumOverviewComponent.DEFAULT_WIDTH,
+							AlbumOverviewComponent.DEFAULT_HEIGHT);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns an album overview component that is not bound to any album,
+	 * reusing a recycled component if there is one.
+	 * 
+	 * @return An album overview component that is not bound to any album.
+	 */
+	private AlbumOverviewComponent obtainComponent() {
+		if (!this.recycledComps.isEmpty())
+			return this.recycledComps.remove(this.recycledComps.size() - 1);
+
+		final AlbumOverviewComponent comp = new AlbumOverviewComponent(this);
+		comp.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseUp(MouseEvent e) {
+				Album album = comp.getAlbum();
+				if (album != null)
+					DetailsWindowManager.show(getShell(), album);
+			}
+		});
+		return comp;
+	}
+
+	@Override
+	public Control getControl() {
+		return this;
+	}
+
+	@Override
+	public void albumsAdded(int firstIndex, int lastIndex) {
+		if (firstIndex > this.layoutLast + 1) {
+			// the live components already fill the visible area, and the
+			// added albums get their components once they are scrolled into
+			// view
+			return;
+		}
+		this.addedFirst = firstIndex;
+		this.addedLast = lastIndex;
+		this.layout(true);
+		this.addedFirst = -1;
+		this.addedLast = -1;
+	}
+
+	@Override
+	public void leadingPositionChanged() {
+		this.layout(true);
+	}
+
+	@Override
+	public void leadingPositionScrolled() {
+		int leading = (int) Math.floor(this.owner.leadingPosition);
+		if (!Stage2Components.BLIT_SCROLLING
+				|| (leading != this.layoutLeading)) {
+			// the live components need to change
+			this.layout(true);
+			return;
+		}
+
+		int newScrollOffset = this.owner.getScrollOffset();
+		int dx = this.scrollOffset - newScrollOffset;
+		if (dx == 0)
+			return;
+		// move the painted components along with their pixels instead of
+		// laying them out and repainting them
+		Rectangle bounds = this.getBounds();
+		this.scrollOffset = newScrollOffset;
+		this.scroll(dx, 0, 0, 0, bounds.width, bounds.height, true);
+
+		// scrolling moves only the components that intersect the visible
+		// area. The live components in the margins are moved explicitly, so
+		// that they are in place once they are scrolled into view.
+		for (Map.Entry<Integer, AlbumOverviewComponent> entry : this.liveComps
+				.entrySet()) {
+			AlbumOverviewComponent comp = entry.getValue();
+			Point location = comp.getLocation();
+			int x = entry.getKey() * Stage2Components.STRIDE
+					- newScrollOffset;
+			if (location.x != x)
+				comp.setLocation(x, location.y);
+		}
+	}
+}
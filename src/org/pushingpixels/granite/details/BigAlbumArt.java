@@ -32,15 +32,21 @@ package org.pushingpixels.granite.details;
 import java.awt.image.BufferedImage;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.DisposeEvent;
+import org.eclipse.swt.events.DisposeListener;
 import org.eclipse.swt.events.PaintEvent;
 import org.eclipse.swt.events.PaintListener;
 import org.eclipse.swt.graphics.*;
 import org.eclipse.swt.widgets.Canvas;
 import org.eclipse.swt.widgets.Composite;
 import org.pushingpixels.granite.GraniteUtils;
+import org.pushingpixels.granite.GraphicsResources;
+import org.pushingpixels.granite.ResourceTracker;
 
 /**
- * Shows the big album art for Amazon album items.
+ * Shows the big album art for Amazon album items. The overview album art, or
+ * the empty background if the overview album art is not available, can be
+ * shown as a placeholder until the big album art has been loaded.
  * 
  * @author Kirill Grouchnikov
  */
@@ -95,6 +101,16 @@ public class BigAlbumArt extends Canvas {
 		this.imageAlpha = 0;
 		this.oldImageAlpha = 0;
 
+		this.addDisposeListener(new DisposeListener() {
+			@Override
+			public void widgetDisposed(DisposeEvent e) {
+				ResourceTracker.dispose(oldImage);
+				ResourceTracker.dispose(image);
+				oldImage = null;
+				image = null;
+			}
+		});
+
 		this.addPaintListener(new PaintListener() {
 			@Override
 			public void paintControl(PaintEvent e) {
@@ -104,12 +120,13 @@ public class BigAlbumArt extends Canvas {
 				int w = getBounds().width;
 				int h = getBounds().height;
 
-				Color fill = new Color(e.display, 192, 192, 192);
+				GraphicsResources resources = GraphicsResources.get(e.display);
+				Color fill = resources.getColor(192, 192, 192);
 				gc.setBackground(fill);
 				// TODO: fill round rectangle once SWT supports per-pixel
 				// translucency
 				gc.fillRectangle(0, 0, w, h);
-				fill.dispose();
+				resources.release(fill);
 
 				if (oldImageAlpha > 0) {
 					gc.setAlpha(oldImageAlpha);
@@ -140,40 +157,105 @@ public class BigAlbumArt extends Canvas {
 				gc.setLineAttributes(new LineAttributes(2.0f));
 				gc.drawRoundRectangle(1, 1, w - 2, h - 2, 3, 3);
 
-				Color outer = new Color(e.display, 192, 192, 192);
+				Color outer = resources.getColor(192, 192, 192);
 				gc.setForeground(outer);
 				gc.setLineAttributes(new LineAttributes(1.0f));
 				gc.drawRoundRectangle(0, 0, w - 1, h - 1, 4, 4);
-				outer.dispose();
+				resources.release(outer);
 			}
 		});
 	}
 
 	/**
-	 * Sets the specified album art for the display.
+	 * Sets the specified album art for the display. This component takes
+	 * ownership of the image. Must be called on the UI thread.
 	 * 
 	 * @param image
 	 *            Album art.
 	 */
 	public void setAlbumArtImage(Image image) {
+		// the art that is replaced before its cross fade has ended is no
+		// longer shown
+		ResourceTracker.dispose(this.oldImage);
 		this.oldImage = this.image;
 		this.oldImageAlpha = this.imageAlpha;
 
 		this.image = image;
 		this.imageAlpha = 0;
-		float vFactor = (float) ALBUM_ART_DIM
-				/ (float) image.getImageData().height;
-		float hFactor = (float) ALBUM_ART_DIM
-				/ (float) image.getImageData().width;
+		Rectangle imageBounds = image.getBounds();
+		float vFactor = (float) ALBUM_ART_DIM / (float) imageBounds.height;
+		float hFactor = (float) ALBUM_ART_DIM / (float) imageBounds.width;
 		float factor = Math.min(1.0f, Math.min(vFactor, hFactor));
 		if (factor < 1.0f) {
 			// scaled to fit available area
 			this.image = GraniteUtils.getScaledInstance(image,
-					(int) (factor * image.getImageData().width),
-					(int) (factor * image.getImageData().height));
+					(int) (factor * imageBounds.width),
+					(int) (factor * imageBounds.height));
+			ResourceTracker.dispose(image);
 		}
 	}
 
+	/**
+	 * Immediately shows the specified low-resolution album art, scaled up to
+	 * the album art dimension, in place of the currently displayed album art.
+	 * The placeholder is cross faded to the album art set later with
+	 * {@link #setAlbumArtImage(Image)}. Must be called on the UI thread.
+	 * 
+	 * @param thumbnail
+	 *            Low-resolution album art.
+	 */
+	public void setPlaceholderArt(ImageData thumbnail) {
+		float factor = Math.min((float) ALBUM_ART_DIM / thumbnail.width,
+				(float) ALBUM_ART_DIM / thumbnail.height);
+		int width = Math.max(1, (int) (factor * thumbnail.width));
+		int height = Math.max(1, (int) (factor * thumbnail.height));
+
+		// let the native graphics interpolate instead of scaling the pixels,
+		// so that the placeholder is shown in the current frame
+		Image source = ResourceTracker.track(new Image(this.getDisplay(),
+				thumbnail));
+		Image placeholder = ResourceTracker.track(new Image(this.getDisplay(),
+				width, height));
+		GC gc = new GC(placeholder);
+		gc.setInterpolation(SWT.HIGH);
+		gc.drawImage(source, 0, 0, thumbnail.width, thumbnail.height, 0, 0,
+				width, height);
+		gc.dispose();
+		ResourceTracker.dispose(source);
+
+		ResourceTracker.dispose(this.oldImage);
+		ResourceTracker.dispose(this.image);
+		this.oldImage = null;
+		this.oldImageAlpha = 0;
+		this.image = placeholder;
+		this.imageAlpha = 255;
+		this.redraw();
+	}
+
+	/**
+	 * Removes the displayed album art, so that only the empty background is
+	 * shown until the album art is set with {@link #setAlbumArtImage(Image)}.
+	 * Must be called on the UI thread.
+	 */
+	public void clearAlbumArt() {
+		ResourceTracker.dispose(this.oldImage);
+		ResourceTracker.dispose(this.image);
+		this.oldImage = null;
+		this.oldImageAlpha = 0;
+		this.image = null;
+		this.imageAlpha = 0;
+		this.redraw();
+	}
+
+	/**
+	 * Returns the alpha value for the displayed album art.
+	 * 
+	 * @return The alpha value for the displayed album art.
+	 */
+	public int getImageAlpha() {
+		return this.imageAlpha;
+	}
+
 	/**
 	 * Sets the new alpha value for the displayed album art.
 	 * 
@@ -184,6 +266,15 @@ public class BigAlbumArt extends Canvas {
 		this.imageAlpha = imageAlpha;
 	}
 
+	/**
+	 * Returns the alpha value for the previously displayed album art.
+	 * 
+	 * @return The alpha value for the previously displayed album art.
+	 */
+	public int getOldImageAlpha() {
+		return this.oldImageAlpha;
+	}
+
 	/**
 	 * Sets the new alpha value for the previously displayed album art.
 	 * 
@@ -30,28 +30,66 @@
 package org.pushingpixels.granite.details;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.DisposeEvent;
+import org.eclipse.swt.events.DisposeListener;
 import org.eclipse.swt.graphics.*;
 import org.eclipse.swt.widgets.*;
-import org.pushingpixels.granite.BackendConnector;
+import org.pushingpixels.granite.AlbumOverviewComponent;
 import org.pushingpixels.granite.EclipseJobTimelineScenarioActor;
+import org.pushingpixels.granite.FrameRepaintCallback;
+import org.pushingpixels.granite.ResourceTracker;
+import org.pushingpixels.granite.art.AlbumArtCache;
+import org.pushingpixels.granite.art.ImageUploadQueue;
+import org.pushingpixels.granite.backend.FlightHandle;
 import org.pushingpixels.granite.data.Album;
 import org.pushingpixels.granite.data.Track;
 import org.pushingpixels.trident.*;
 import org.pushingpixels.trident.Timeline.TimelineState;
+import org.pushingpixels.trident.callback.TimelineScenarioCallback;
 import org.pushingpixels.trident.callback.UIThreadTimelineCallbackAdapter;
 import org.pushingpixels.trident.swing.TimelineSwingWorker;
-import org.pushingpixels.trident.swt.SWTRepaintCallback;
 
 /**
  * Shows the details of the selected album, including bigger album art and a
- * scrollable list of album tracks.
+ * scrollable list of album tracks. The details window waits at most
+ * <code>granite.details.artBudget</code> milliseconds (default 1000) for the
+ * album art and at most <code>granite.details.tracksBudget</code> milliseconds
+ * (default 1500) for the track listing. Once a budget has passed, the window
+ * is shown with a placeholder, and the late data is patched in with its own
+ * animation after the window has been shown. The late requests are not
+ * cancelled, so that their results are cached for the next time. Selecting
+ * another album stops the background work of the previous album and hands its
+ * unfinished requests back to the {@link DetailsPrefetcher}, and closing the
+ * window cancels them.
  * 
  * @author Kirill Grouchnikov
  */
 public class DetailsContentPanel extends Composite {
+	/**
+	 * The maximal time to wait for the album art before showing the details.
+	 */
+	private static final int ART_BUDGET_MILLIS = Integer.getInteger(
+			"granite.details.artBudget", 1000);
+
+	/**
+	 * The maximal time to wait for the track listing before showing the
+	 * details.
+	 */
+	private static final int TRACKS_BUDGET_MILLIS = Integer.getInteger(
+			"granite.details.tracksBudget", 1500);
+
+	/**
+	 * How often the waits for the album data and the album art upload check
+	 * whether the load has been cancelled.
+	 */
+	private static final int CANCEL_POLL_MILLIS = 100;
+
 	/**
 	 * Component that shows the album art.
 	 */
@@ -67,6 +105,11 @@ public class DetailsContentPanel extends Composite {
 	 */
 	private TimelineScenario currentShowAlbumDetailsScenario;
 
+	/**
+	 * The load of the last selected album item.
+	 */
+	private AlbumLoad currentLoad;
+
 	/**
 	 * 0.0f - the album art and track listing are completely overlayed, 1.0f -
 	 * the album art and track listing are completely separate. Is updated in
@@ -74,6 +117,159 @@ public class DetailsContentPanel extends Composite {
 	 */
 	private float overlayPosition;
 
+	/**
+	 * The region currently set on the shell of this window. Is disposed when
+	 * it is replaced and when this window is disposed.
+	 */
+	private Region shellRegion;
+
+	/**
+	 * The requests, the background work and the late patches of a single
+	 * details scenario. Cancelling the load stops its background work, so
+	 * that clicking through the albums does not pile it up. The data that
+	 * arrives after its budget is applied once the scenario has shown the
+	 * details, so that the patch animation does not interfere with the
+	 * animations of the scenario.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private class AlbumLoad implements TimelineScenarioCallback {
+		private Album album;
+
+		private DetailsPrefetcher.Prefetch prefetch;
+
+		private volatile boolean isCancelled;
+
+		private boolean isScenarioDone;
+
+		private List<Runnable> pending = new ArrayList<Runnable>();
+
+		private Job artJob;
+
+		private Future<?> tracksWorker;
+
+		private volatile Future<Image> artUpload;
+
+		AlbumLoad(Album album, DetailsPrefetcher.Prefetch prefetch) {
+			this.album = album;
+			this.prefetch = prefetch;
+		}
+
+		/**
+		 * Waits at most the specified time for the specified request of this
+		 * load.
+		 * 
+		 * @param handle
+		 *            Request.
+		 * @param budgetMillis
+		 *            The maximal time to wait, or a negative value to wait
+		 *            until the request completes.
+		 * @return The loaded resource.
+		 * @throws TimeoutException
+		 *             If the request has not completed within the budget.
+		 * @throws CancellationException
+		 *             If this load has been cancelled.
+		 * @throws Exception
+		 *             If the request has failed.
+		 */
+		<V> V await(FlightHandle<V> handle, long budgetMillis)
+				throws Exception {
+			long deadline = System.currentTimeMillis() + budgetMillis;
+			while (true) {
+				// the request itself may be kept for later, so check for the
+				// cancellation of this load between the waits
+				if (this.isCancelled)
+					throw new CancellationException();
+				long wait = CANCEL_POLL_MILLIS;
+				if (budgetMillis >= 0) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+						throw new TimeoutException();
+					wait = Math.min(wait, remaining);
+				}
+				try {
+					return handle.await(wait, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException te) {
+					// check the cancellation and the budget again
+				}
+			}
+		}
+
+		/**
+		 * Applies the specified patch once the scenario has shown the
+		 * details. Must be called on the UI thread.
+		 * 
+		 * @param patch
+		 *            Patch.
+		 */
+		void patch(Runnable patch) {
+			if (this.isCancelled || isDisposed())
+				return;
+			if (this.isScenarioDone)
+				patch.run();
+			else
+				this.pending.add(patch);
+		}
+
+		@Override
+		public void onTimelineScenarioDone() {
+			Display.getDefault().asyncExec(new Runnable() {
+				@Override
+				public void run() {
+					isScenarioDone = true;
+					for (Runnable patch : pending)
+						patch(patch);
+					pending.clear();
+				}
+			});
+		}
+
+		/**
+		 * Stops the background work of this load. Must be called on the UI
+		 * thread.
+		 * 
+		 * @param keepRequests
+		 *            If <code>true</code>, the unfinished requests are handed
+		 *            back to the {@link DetailsPrefetcher} so that their
+		 *            results can be cached. Otherwise, they are cancelled.
+		 */
+		void cancel(boolean keepRequests) {
+			this.isCancelled = true;
+			this.pending.clear();
+			if (this.artJob != null)
+				this.artJob.cancel();
+			if (this.tracksWorker != null)
+				this.tracksWorker.cancel(false);
+			if (this.artUpload != null)
+				this.artUpload.cancel(false);
+			if (keepRequests)
+				DetailsPrefetcher.getDefault().release(this.album,
+						this.prefetch);
+			else
+				this.prefetch.cancel();
+		}
+	}
+
+	/**
+	 * Applies the result of a late request.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private static interface LatePatch<V> {
+		/**
+		 * Is called on the UI thread with the result of a late request.
+		 * 
+		 * @param value
+		 *            The result of the request.
+		 */
+		public void apply(V value);
+
+		/**
+		 * Is called on the UI thread when a late request has failed.
+		 */
+		public void failed();
+	}
+
 	/**
 	 * Creates a new details window.
 	 * 
@@ -111,6 +307,173 @@ public class DetailsContentPanel extends Composite {
 				return new Point(wHint, hHint);
 			}
 		});
+
+		this.addDisposeListener(new DisposeListener() {
+			@Override
+			public void widgetDisposed(DisposeEvent e) {
+				// the window has been closed
+				if (currentLoad != null) {
+					currentLoad.cancel(false);
+					currentLoad = null;
+				}
+				ResourceTracker.dispose(shellRegion);
+				shellRegion = null;
+			}
+		});
+	}
+
+	/**
+	 * Shows the horizontally centered part of the shell of this window. The
+	 * region is owned by this window, and is disposed once it is replaced or
+	 * this window is disposed.
+	 * 
+	 * @param regionWidth
+	 *            The width of the visible part.
+	 */
+	void setShellRegion(int regionWidth) {
+		Shell shell = this.getShell();
+		if (shell.isDisposed())
+			return;
+		Region newRegion = ResourceTracker.track(new Region());
+		newRegion.add(BigAlbumArt.TOTAL_DIM - regionWidth / 2, 0, regionWidth,
+				BigAlbumArt.TOTAL_DIM);
+		shell.setRegion(newRegion);
+		// the shell keeps a reference to its region, so the previous one can
+		// only be disposed after it has been replaced
+		ResourceTracker.dispose(this.shellRegion);
+		this.shellRegion = newRegion;
+	}
+
+	/**
+	 * Waits for the specified late request on a background job and hands its
+	 * result to the UI thread.
+	 * 
+	 * @param name
+	 *            Job name.
+	 * @param handle
+	 *            Late request.
+	 * @param load
+	 *            The load that has stopped waiting for the request.
+	 * @param patch
+	 *            Applies the result of the request on the UI thread.
+	 */
+	private <V> void patchLate(String name, final FlightHandle<V> handle,
+			final AlbumLoad load, final LatePatch<V> patch) {
+		Job job = new Job(name) {
+			@Override
+			protected org.eclipse.core.runtime.IStatus run(
+					org.eclipse.core.runtime.IProgressMonitor monitor) {
+				final V value;
+				try {
+					value = load.await(handle, -1);
+				} catch (CancellationException ce) {
+					return Status.CANCEL_STATUS;
+				} catch (Throwable t) {
+					t.printStackTrace();
+					Display.getDefault().asyncExec(new Runnable() {
+						@Override
+						public void run() {
+							load.patch(new Runnable() {
+								@Override
+								public void run() {
+									patch.failed();
+								}
+							});
+						}
+					});
+					return Status.CANCEL_STATUS;
+				}
+				Display.getDefault().asyncExec(new Runnable() {
+					@Override
+					public void run() {
+						load.patch(new Runnable() {
+							@Override
+							public void run() {
+								patch.apply(value);
+							}
+						});
+					}
+				});
+				return Status.OK_STATUS;
+			}
+		};
+		job.schedule();
+	}
+
+	/**
+	 * Returns the timeline that cross fades the album art from old to new. The
+	 * alphas are interpolated from their current values, so that the album
+	 * art that has not been replaced stays as is.
+	 * 
+	 * @return The timeline that cross fades the album art.
+	 */
+	private Timeline createAlbumArtCrossfade() {
+		Timeline albumArtCrossfadeTimeline = new Timeline(this.albumArt);
+		albumArtCrossfadeTimeline.addPropertyToInterpolate(Timeline
+				.<Integer> property("oldImageAlpha").fromCurrent().to(0));
+		albumArtCrossfadeTimeline.addPropertyToInterpolate(Timeline
+				.<Integer> property("imageAlpha").fromCurrent().to(255));
+		albumArtCrossfadeTimeline.addCallback(new FrameRepaintCallback(
+				this.albumArt));
+		albumArtCrossfadeTimeline.setDuration(400);
+		return albumArtCrossfadeTimeline;
+	}
+
+	/**
+	 * Uploads the specified album art and sets it on the album art component.
+	 * The upload is skipped if the load is cancelled before the upload starts,
+	 * and the uploaded image is disposed if the load is cancelled before the
+	 * image has been set.
+	 * 
+	 * @param albumArtData
+	 *            Album art.
+	 * @param load
+	 *            The load of the album art.
+	 * @param crossfade
+	 *            If <code>true</code>, the album art is cross faded in once it
+	 *            has been set.
+	 * @return The future of the uploaded image.
+	 */
+	private Future<Image> uploadAlbumArt(ImageData albumArtData,
+			final AlbumLoad load, final boolean crossfade) {
+		load.artUpload = ImageUploadQueue.getDefault().upload(albumArtData,
+				new ImageUploadQueue.UploadCallback() {
+					@Override
+					public void uploaded(Image image) {
+						if (load.isCancelled || albumArt.isDisposed()) {
+							ResourceTracker.dispose(image);
+							return;
+						}
+						albumArt.setAlbumArtImage(image);
+						if (crossfade)
+							createAlbumArtCrossfade().play();
+					}
+				});
+		return load.artUpload;
+	}
+
+	/**
+	 * Shows the placeholder of the album art of the specified load. Is called
+	 * once the previous album has been collapsed, so that the placeholder is
+	 * not shown next to the track listing of the previous album. Must be
+	 * called on the UI thread.
+	 * 
+	 * @param load
+	 *            The load of the album art.
+	 * @param thumbnail
+	 *            The overview album art, or <code>null</code> to show the
+	 *            empty background if the overview album art is not decoded.
+	 */
+	private void showPlaceholderArt(AlbumLoad load, ImageData thumbnail) {
+		// the big album art may already be on its way to the album art
+		// component
+		if (load.isCancelled || this.albumArt.isDisposed()
+				|| (load.artUpload != null))
+			return;
+		if (thumbnail != null)
+			this.albumArt.setPlaceholderArt(thumbnail);
+		else
+			this.albumArt.clearAlbumArt();
 	}
 
 	/**
@@ -124,6 +487,11 @@ public class DetailsContentPanel extends Composite {
 	public void setAlbumItem(Album albumItem) {
 		if (this.currentShowAlbumDetailsScenario != null)
 			this.currentShowAlbumDetailsScenario.cancel();
+		if (this.currentLoad != null) {
+			// the previous album may be shown again soon
+			this.currentLoad.cancel(true);
+			this.currentLoad = null;
+		}
 
 		this.currentShowAlbumDetailsScenario = this
 				.getShowAlbumDetailsScenario(albumItem);
@@ -160,6 +528,22 @@ public class DetailsContentPanel extends Composite {
 
 		TimelineScenario.RendezvousSequence scenario = new TimelineScenario.RendezvousSequence();
 
+		// the album art and track listing may have been prefetched while the
+		// mouse was over the album
+		final DetailsPrefetcher.Prefetch prefetch = DetailsPrefetcher
+				.getDefault().claim(album);
+		final AlbumLoad load = new AlbumLoad(album, prefetch);
+		this.currentLoad = load;
+		scenario.addCallback(load);
+
+		// the overview album art that is already decoded, or the empty
+		// background if there is none, is shown once the previous album has
+		// been collapsed, until the big album art is loaded. If it never
+		// loads, the placeholder stays.
+		final ImageData thumbnail = AlbumArtCache.getDefault()
+				.getCachedOverviewArt(album.asin,
+						AlbumOverviewComponent.OVERVIEW_IMAGE_DIM);
+
 		// step 1 - move album art and track listing to the same location
 		Timeline collapseArtAndTracks = new Timeline(this);
 		collapseArtAndTracks.addPropertyToInterpolate("overlayPosition",
@@ -175,6 +559,9 @@ public class DetailsContentPanel extends Composite {
 					startingRegionWidth = (int) (BigAlbumArt.TOTAL_DIM * (1 + overlayPosition));
 				}
 				updateShellRegion(timelinePosition);
+				if (newState == TimelineState.DONE) {
+					showPlaceholderArt(load, thumbnail);
+				}
 			}
 
 			@Override
@@ -184,14 +571,8 @@ public class DetailsContentPanel extends Composite {
 			}
 
 			private void updateShellRegion(float timelinePosition) {
-				int regionWidth = (int) (startingRegionWidth + timelinePosition
-						* (BigAlbumArt.TOTAL_DIM - startingRegionWidth));
-				Region newRegion = new Region();
-				newRegion.add(BigAlbumArt.TOTAL_DIM - regionWidth / 2, 0,
-						regionWidth, BigAlbumArt.TOTAL_DIM);
-				Shell shell = getShell();
-				if (!shell.isDisposed())
-					getShell().setRegion(newRegion);
+				setShellRegion((int) (startingRegionWidth + timelinePosition
+						* (BigAlbumArt.TOTAL_DIM - startingRegionWidth)));
 			}
 		});
 		// collapseArtAndTracks.addPropertyToInterpolate(Timeline
@@ -209,33 +590,77 @@ public class DetailsContentPanel extends Composite {
 		scenario.addScenarioActor(collapseArtAndTracks);
 
 		// step 2 (in parallel) - load the new album art
-		final Image[] albumArtHolder = new Image[1];
+		final ImageData[] albumArtHolder = new ImageData[1];
 		EclipseJobTimelineScenarioActor loadNewAlbumArt = new EclipseJobTimelineScenarioActor(
 				"Load album art") {
 			@Override
 			protected org.eclipse.core.runtime.IStatus run(
 					org.eclipse.core.runtime.IProgressMonitor arg0) {
 				try {
-					albumArtHolder[0] = new Image(Display.getDefault(),
-							BackendConnector.getLargeAlbumArt(album.asin));
+					// the album art is decoded and scaled here, and the
+					// native image is created on the UI thread
+					albumArtHolder[0] = load.await(prefetch.getArt(),
+							ART_BUDGET_MILLIS);
 					return Status.OK_STATUS;
+				} catch (TimeoutException te) {
+					// show the details without the album art, and cross fade
+					// to it once it arrives
+					patchLate("Load late album art", prefetch.getArt(), load,
+							new LatePatch<ImageData>() {
+								@Override
+								public void apply(ImageData value) {
+									uploadAlbumArt(value, load, true);
+								}
+
+								@Override
+								public void failed() {
+									// the placeholder stays
+								}
+							});
+					return Status.OK_STATUS;
+				} catch (CancellationException ce) {
+					return Status.CANCEL_STATUS;
 				} catch (Throwable t) {
 					t.printStackTrace();
 					return Status.CANCEL_STATUS;
 				}
 			}
 		};
+		load.artJob = loadNewAlbumArt;
 		scenario.addScenarioActor(loadNewAlbumArt);
 
 		// step 3 (in parallel) - load the track listing
 		final java.util.List<Track> tracks = new ArrayList<Track>();
+		final boolean[] tracksLate = new boolean[1];
 		TimelineSwingWorker<Void, Void> loadNewAlbumTrackList = new TimelineSwingWorker<Void, Void>() {
 			@Override
 			protected Void doInBackground() throws Exception {
-				tracks.addAll(BackendConnector.doTrackSearch(album.releaseID));
+				try {
+					tracks.addAll(load.await(prefetch.getTracks(),
+							TRACKS_BUDGET_MILLIS));
+				} catch (TimeoutException te) {
+					// show the details with a placeholder, and fade the
+					// tracks in once they arrive
+					tracksLate[0] = true;
+					patchLate("Load late tracks", prefetch.getTracks(), load,
+							new LatePatch<List<Track>>() {
+								@Override
+								public void apply(List<Track> value) {
+									if (!trackListing.isDisposed())
+										trackListing.setTracks(value);
+								}
+
+								@Override
+								public void failed() {
+									if (!trackListing.isDisposed())
+										trackListing.setTracksUnavailable();
+								}
+							});
+				}
 				return null;
 			}
 		};
+		load.tracksWorker = loadNewAlbumTrackList;
 		scenario.addScenarioActor(loadNewAlbumTrackList);
 		scenario.rendezvous();
 
@@ -243,7 +668,36 @@ public class DetailsContentPanel extends Composite {
 		TimelineRunnable replaceAlbumArt = new TimelineRunnable() {
 			@Override
 			public void run() {
-				albumArt.setAlbumArtImage(albumArtHolder[0]);
+				if ((albumArtHolder[0] == null) || load.isCancelled
+						|| isDisposed())
+					return;
+				// the native image is created by the upload queue, and this
+				// step waits until it has been set on the album art. The
+				// upload never runs once the window or the display is gone,
+				// so check for that between the waits.
+				Future<Image> upload = uploadAlbumArt(albumArtHolder[0], load,
+						false);
+				try {
+					while (true) {
+						if (load.isCancelled || isDisposed()) {
+							upload.cancel(false);
+							return;
+						}
+						try {
+							upload.get(CANCEL_POLL_MILLIS,
+									TimeUnit.MILLISECONDS);
+							return;
+						} catch (TimeoutException te) {
+							// check the cancellation again
+						}
+					}
+				} catch (CancellationException ce) {
+					// the album is no longer shown
+				} catch (InterruptedException ie) {
+					upload.cancel(false);
+				} catch (Exception exc) {
+					exc.printStackTrace();
+				}
 			}
 		};
 		scenario.addScenarioActor(replaceAlbumArt);
@@ -252,24 +706,16 @@ public class DetailsContentPanel extends Composite {
 		TimelineRunnable replaceTrackListing = new TimelineRunnable() {
 			@Override
 			public void run() {
-				trackListing.setAlbumItem(album, tracks);
+				trackListing.setAlbumItem(album, tracksLate[0] ? null
+						: tracks);
 			}
 		};
 		scenario.addScenarioActor(replaceTrackListing);
 		scenario.rendezvous();
 
 		// step 6 (wait for steps 4 and 5) - cross fade album art from old to
-		// new
-		Timeline albumArtCrossfadeTimeline = new Timeline(this.albumArt);
-		albumArtCrossfadeTimeline.addPropertyToInterpolate("oldImageAlpha",
-				255, 0);
-		albumArtCrossfadeTimeline
-				.addPropertyToInterpolate("imageAlpha", 0, 255);
-		albumArtCrossfadeTimeline.addCallback(new SWTRepaintCallback(
-				this.albumArt));
-		albumArtCrossfadeTimeline.setDuration(400);
-
-		scenario.addScenarioActor(albumArtCrossfadeTimeline);
+		// new. A placeholder that has not been replaced in step 4 stays as is.
+		scenario.addScenarioActor(this.createAlbumArtCrossfade());
 		scenario.rendezvous();
 
 		// step 7 (wait for step 6) - move new album art and track listing to
@@ -292,13 +738,7 @@ public class DetailsContentPanel extends Composite {
 			}
 
 			private void updateShellRegion(float timelinePosition) {
-				int regionWidth = (int) (BigAlbumArt.TOTAL_DIM * (1.0 + timelinePosition));
-				Region newRegion = new Region();
-				newRegion.add(BigAlbumArt.TOTAL_DIM - regionWidth / 2, 0,
-						regionWidth, BigAlbumArt.TOTAL_DIM);
-				Shell shell = getShell();
-				if (!shell.isDisposed())
-					getShell().setRegion(newRegion);
+				setShellRegion((int) (BigAlbumArt.TOTAL_DIM * (1.0 + timelinePosition)));
 			}
 		});
 		//
@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.details;
+
+import java.util.*;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.widgets.Display;
+import org.pushingpixels.granite.BackendConnector;
+import org.pushingpixels.granite.art.AlbumArtCache;
+import org.pushingpixels.granite.backend.FetchPriority;
+import org.pushingpixels.granite.backend.FlightHandle;
+import org.pushingpixels.granite.data.Album;
+import org.pushingpixels.granite.data.Track;
+
+/**
+ * Starts loading the album art and the track listing of an album once the
+ * mouse has rested on it for <code>granite.prefetch.dwell</code> milliseconds
+ * (default 150), so that the details window finds them loaded or in flight
+ * when the album is clicked. A prefetch is deprioritized when the mouse leaves
+ * its album, and only the last few prefetches are kept. The albums around the
+ * visible area are warmed by the {@link NeighborhoodPrefetcher}. Running with
+ * <code>-Dgranite.prefetchStats=true</code> prints the hit rate and the head
+ * start of the prefetches every time the details of an album are shown.
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class DetailsPrefetcher {
+	/**
+	 * The maximal number of prefetches kept for the albums that are no longer
+	 * under the mouse.
+	 */
+	private static final int MAX_PREFETCHES = 4;
+
+	/**
+	 * The priority of a prefetch for the album under the mouse. Runs after the
+	 * requests that the user is waiting on, and before the overview art of
+	 * all but the leading album.
+	 */
+	private static final float HOVER_PRIORITY = 0.5f;
+
+	/**
+	 * The priority of a prefetch for an album that is no longer under the
+	 * mouse.
+	 */
+	private static final float IDLE_PRIORITY = 1000.0f;
+
+	/**
+	 * The shared prefetcher instance.
+	 */
+	private static DetailsPrefetcher instance;
+
+	/**
+	 * The display that runs the dwell timer.
+	 */
+	private Display display;
+
+	/**
+	 * The mouse dwell time before a prefetch is started.
+	 */
+	private int dwellMillis;
+
+	/**
+	 * The started prefetches, keyed by release ID, from the least recently
+	 * hovered.
+	 */
+	private LinkedHashMap<String, Prefetch> prefetches;
+
+	/**
+	 * The album under the mouse, or <code>null</code> if there is none.
+	 */
+	private Album hoverAlbum;
+
+	/**
+	 * Starts the prefetch of {@link #hoverAlbum} once the dwell time has
+	 * passed.
+	 */
+	private Runnable dwellTimer = new Runnable() {
+		@Override
+		public void run() {
+			if (hoverAlbum != null)
+				startPrefetch(hoverAlbum);
+		}
+	};
+
+	/**
+	 * The number of details requests that found a prefetch.
+	 */
+	private int hitCount;
+
+	/**
+	 * The number of details requests that did not find a prefetch.
+	 */
+	private int missCount;
+
+	/**
+	 * The total time between the start of the prefetches and the details
+	 * requests that found them.
+	 */
+	private long headStartMillis;
+
+	/**
+	 * The priority of the requests of a single prefetch. Can be changed while
+	 * the requests are waiting.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	static class PrefetchPriority implements FetchPriority {
+		volatile float value;
+
+		PrefetchPriority(float value) {
+			this.value = value;
+		}
+
+		@Override
+		public float getPriority() {
+			return this.value;
+		}
+	}
+
+	/**
+	 * The album art and track listing requests of a single album.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	public static class Prefetch {
+		private FlightHandle<ImageData> art;
+
+		private FlightHandle<List<Track>> tracks;
+
+		PrefetchPriority priority;
+
+		long startTime;
+
+		Prefetch(Album album, PrefetchPriority priority) {
+			this.priority = priority;
+			this.startTime = System.currentTimeMillis();
+			this.art = AlbumArtCache.getDefault().getLargeArtAsync(album.asin,
+					BigAlbumArt.ALBUM_ART_DIM, priority);
+			this.tracks = BackendConnector.doTrackSearchAsync(album.releaseID,
+					priority);
+		}
+
+		/**
+		 * Returns the handle for the album art.
+		 * 
+		 * @return The handle for the album art.
+		 */
+		public FlightHandle<ImageData> getArt() {
+			return this.art;
+		}
+
+		/**
+		 * Returns the handle for the track listing.
+		 * 
+		 * @return The handle for the track listing.
+		 */
+		public FlightHandle<List<Track>> getTracks() {
+			return this.tracks;
+		}
+
+		/**
+		 * Returns indication whether both requests have completed.
+		 * 
+		 * @return <code>true</code> if both requests have completed.
+		 */
+		public boolean isDone() {
+			return this.art.isDone() && this.tracks.isDone();
+		}
+
+		/**
+		 * Cancels both requests.
+		 */
+		public void cancel() {
+			this.art.cancel(true);
+			this.tracks.cancel(true);
+		}
+	}
+
+	/**
+	 * Returns the shared prefetcher.
+	 * 
+	 * @return The shared prefetcher.
+	 */
+	public static synchronized DetailsPrefetcher getDefault() {
+		if (instance == null) {
+			instance = new DetailsPrefetcher(Display.getDefault(), Integer
+					.getInteger("granite.prefetch.dwell", 150));
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new prefetcher.
+	 * 
+	 * @param display
+	 *            The display that runs the dwell timer.
+	 * @param dwellMillis
+	 *            The mouse dwell time before a prefetch is started.
+	 */
+	public DetailsPrefetcher(Display display, int dwellMillis) {
+		this.display = display;
+		this.dwellMillis = dwellMillis;
+		this.prefetches = new LinkedHashMap<String, Prefetch>();
+	}
+
+	/**
+	 * Signals that the mouse has moved over the specified album. Must be
+	 * called on the UI thread.
+	 * 
+	 * @param album
+	 *            Album under the mouse.
+	 */
+	public void hoverStarted(Album album) {
+		if (this.hoverAlbum != null)
+			this.hoverEnded(this.hoverAlbum);
+		this.hoverAlbum = album;
+		this.display.timerExec(this.dwellMillis, this.dwellTimer);
+	}
+
+	/**
+	 * Signals that the mouse has left the specified album. Must be called on
+	 * the UI thread.
+	 * 
+	 * @param album
+	 *            Album that is no longer under the mouse.
+	 */
+	public void hoverEnded(Album album) {
+		if (this.hoverAlbum != album)
+			return;
+		this.hoverAlbum = null;
+		// cancel the prefetch that has not started yet
+		this.display.timerExec(-1, this.dwellTimer);
+		synchronized (this) {
+			Prefetch prefetch = this.prefetches.get(album.releaseID);
+			if (prefetch != null)
+				prefetch.priority.value = IDLE_PRIORITY;
+		}
+	}
+
+	private synchronized void startPrefetch(Album album) {
+		Prefetch prefetch = this.prefetches.remove(album.releaseID);
+		if (prefetch == null) {
+			prefetch = new Prefetch(album, new PrefetchPriority(
+					HOVER_PRIORITY));
+		} else {
+			prefetch.priority.value = HOVER_PRIORITY;
+		}
+		this.keep(album, prefetch);
+	}
+
+	/**
+	 * Keeps the specified prefetch as the most recent one, and cancels the
+	 * eldest prefetch if there are too many.
+	 */
+	private void keep(Album album, Prefetch prefetch) {
+		this.prefetches.put(album.releaseID, prefetch);
+		if (this.prefetches.size() > MAX_PREFETCHES) {
+			Iterator<Prefetch> eldest = this.prefetches.values().iterator();
+			eldest.next().cancel();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Hands the requests claimed with {@link #claim(Album)} back when their
+	 * details are no longer shown. The unfinished requests continue at the
+	 * idle priority, so that their results are cached, and are cancelled once
+	 * they are no longer among the last few prefetches. This keeps the
+	 * background work bounded when the user clicks through the albums.
+	 * 
+	 * @param album
+	 *            Album.
+	 * @param prefetch
+	 *            The requests of the album.
+	 */
+	public synchronized void release(Album album, Prefetch prefetch) {
+		if (prefetch.isDone())
+			return;
+		prefetch.priority.value = IDLE_PRIORITY;
+		Prefetch existing = this.prefetches.remove(album.releaseID);
+		if ((existing != null) && (existing != prefetch))
+			existing.cancel();
+		this.keep(album, prefetch);
+	}
+
+	/**
+	 * Cancels all the prefetches, including the prefetches of the
+	 * {@link NeighborhoodPrefetcher}. Must be called on the UI thread.
+	 */
+	public void cancelAll() {
+		this.display.timerExec(-1, this.dwellTimer);
+		this.hoverAlbum = null;
+		synchronized (this) {
+			for (Prefetch prefetch : this.prefetches.values())
+				prefetch.cancel();
+			this.prefetches.clear();
+		}
+		NeighborhoodPrefetcher.getDefault().cancelAll();
+	}
+
+	/**
+	 * Returns the album art and track listing requests for the details of the
+	 * specified album. A prefetch for this album is handed over to the caller
+	 * and made urgent, otherwise new urgent requests are made. The caller owns
+	 * the returned requests.
+	 * 
+	 * @param album
+	 *            Album.
+	 * @return The album art and track listing requests.
+	 */
+	public synchronized Prefetch claim(Album album) {
+		Prefetch prefetch = this.prefetches.remove(album.releaseID);
+		if (prefetch == null) {
+			// the album may have been warmed as a neighbor of the visible
+			// albums
+			prefetch = NeighborhoodPrefetcher.getDefault().claim(album);
+		}
+		if (prefetch != null) {
+			this.hitCount++;
+			this.headStartMillis += System.currentTimeMillis()
+					- prefetch.startTime;
+			prefetch.priority.value = FetchPriority.URGENT.getPriority();
+		} else {
+			this.missCount++;
+			prefetch = new Prefetch(album, new PrefetchPriority(
+					FetchPriority.URGENT.getPriority()));
+		}
+		if (Boolean.getBoolean("granite.prefetchStats"))
+			System.out.println(this);
+		return prefetch;
+	}
+
+	/**
+	 * Returns the share of the details requests that found a prefetch.
+	 * 
+	 * @return The share of the details requests that found a prefetch.
+	 */
+	public synchronized float getHitRate() {
+		int total = this.hitCount + this.missCount;
+		return (total == 0) ? 0.0f : (float) this.hitCount / total;
+	}
+
+	/**
+	 * Returns the average time between the start of a prefetch and the details
+	 * request that found it. This is the upper bound on the latency saved by
+	 * the prefetch.
+	 * 
+	 * @return The average head start of the prefetches, in milliseconds.
+	 */
+	public synchronized long getAverageHeadStartMillis() {
+		return (this.hitCount == 0) ? 0 : this.headStartMillis
+				/ this.hitCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Details prefetch: " + this.hitCount + " hits, "
+				+ this.missCount + " misses, "
+				+ Math.round(100 * this.getHitRate()) + "% hit rate, "
+				+ this.getAverageHeadStartMillis() + "ms average head start";
+	}
+}
@@ -31,7 +31,6 @@ package org.pushingpixels.granite.details;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Point;
-import org.eclipse.swt.graphics.Region;
 import org.eclipse.swt.layout.FillLayout;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Shell;
@@ -94,17 +93,15 @@ public class DetailsWindowManager {
 		int y = mainWindowLoc.y + mainWindowDim.y - BigAlbumArt.TOTAL_DIM / 2;
 		currentlyShownWindow.setSize(2 * BigAlbumArt.TOTAL_DIM,
 				BigAlbumArt.TOTAL_DIM);
-		Region region = new Region();
-		region.add(BigAlbumArt.TOTAL_DIM / 2, 0, BigAlbumArt.TOTAL_DIM,
-				BigAlbumArt.TOTAL_DIM);
-		currentlyShownWindow.setRegion(region);
-		region.dispose();
+		currentlyShownContentPanel = new DetailsContentPanel(
+				currentlyShownWindow);
+		// show only the album art. The content panel owns the shell region
+		// and disposes it once it is replaced or the window is closed.
+		currentlyShownContentPanel.setShellRegion(BigAlbumArt.TOTAL_DIM);
 		currentlyShownWindow.setLocation(x, y);
 
 		currentlyShownWindow.setAlpha(0);
 		currentlyShownWindow.setVisible(true);
-		currentlyShownContentPanel = new DetailsContentPanel(
-				currentlyShownWindow);
 		currentlyShownContentPanel.setAlbumItem(albumItem);
 		currentlyShownWindow
 				.layout(new Control[] { currentlyShownContentPanel });
@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2009-2010 Granite Kirill Grouchnikov. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *     
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *     
+ *  o Neither the name of Granite Kirill Grouchnikov nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE 
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */
+package org.pushingpixels.granite.details;
+
+import java.util.*;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.widgets.Display;
+import org.pushingpixels.granite.data.Album;
+import org.pushingpixels.granite.data.Track;
+import org.pushingpixels.granite.details.DetailsPrefetcher.Prefetch;
+import org.pushingpixels.granite.details.DetailsPrefetcher.PrefetchPriority;
+
+/**
+ * Warms the album art and the track listing of the visible albums and of
+ * <code>granite.prefetch.radius</code> albums (default 3) on each side of the
+ * visible area, so that the details of an album on the screen open from the
+ * warmed data. The warming runs behind all the other requests, with at most
+ * <code>granite.prefetch.maxInFlight</code> albums (default 2) in flight, and
+ * keeps at most <code>granite.prefetch.maxBytes</code> bytes (default 4MB) of
+ * warmed album art. The window follows the scrolling, and the albums that are
+ * more than twice the radius away from the visible area are dropped.
+ * 
+ * @author Kirill Grouchnikov
+ */
+public class NeighborhoodPrefetcher {
+	/**
+	 * The priority of warming the albums in the visible area. The albums
+	 * outside the visible area add their distance from it to this priority.
+	 */
+	private static final float NEIGHBOR_PRIORITY = 100.0f;
+
+	/**
+	 * The estimated size of a single warmed track, in bytes.
+	 */
+	private static final int TRACK_BYTES = 256;
+
+	/**
+	 * How often the completion of the warming albums is checked.
+	 */
+	private static final int POLL_MILLIS = 100;
+
+	/**
+	 * The shared prefetcher instance.
+	 */
+	private static NeighborhoodPrefetcher instance;
+
+	/**
+	 * The display that runs the completion checks.
+	 */
+	private Display display;
+
+	/**
+	 * The number of albums warmed on each side of the visible area.
+	 */
+	private int radius;
+
+	/**
+	 * The maximal number of albums that are warmed at the same time.
+	 */
+	private int maxInFlight;
+
+	/**
+	 * The maximal size of the warmed data, in bytes.
+	 */
+	private long maxBytes;
+
+	/**
+	 * The albums of the current window.
+	 */
+	private List<Album> albums;
+
+	/**
+	 * The index of the first visible album.
+	 */
+	private int firstVisible;
+
+	/**
+	 * The index of the last visible album.
+	 */
+	private int lastVisible;
+
+	/**
+	 * The warming and warmed albums, keyed by release ID.
+	 */
+	private Map<String, Neighbor> neighbors;
+
+	/**
+	 * The release IDs of the albums that have been evicted to stay within the
+	 * memory budget. They are not warmed again until the window moves.
+	 */
+	private Set<String> evicted;
+
+	/**
+	 * The size of the warmed data, in bytes.
+	 */
+	private long warmedBytes;
+
+	/**
+	 * Indicates whether {@link #poller} is scheduled.
+	 */
+	private boolean isPollScheduled;
+
+	/**
+	 * Accounts the completed albums and starts warming the next ones.
+	 */
+	private Runnable poller = new Runnable() {
+		@Override
+		public void run() {
+			isPollScheduled = false;
+			pump();
+		}
+	};
+
+	/**
+	 * A single warming or warmed album.
+	 * 
+	 * @author Kirill Grouchnikov
+	 */
+	private static class Neighbor {
+		int index;
+
+		Prefetch prefetch;
+
+		/**
+		 * The size of the warmed data, or -1 if the album is still warming.
+		 */
+		long bytes;
+
+		Neighbor(int index, Prefetch prefetch) {
+			this.index = index;
+			this.prefetch = prefetch;
+			this.bytes = -1;
+		}
+	}
+
+	/**
+	 * Returns the shared prefetcher.
+	 * 
+	 * @return The shared prefetcher.
+	 */
+	public static synchronized NeighborhoodPrefetcher getDefault() {
+		if (instance == null) {
+			instance = new NeighborhoodPrefetcher(Display.getDefault(), Integer
+					.getInteger("granite.prefetch.radius", 3), Integer
+					.getInteger("granite.prefetch.maxInFlight", 2), Long
+					.getLong("granite.prefetch.maxBytes", 4 * 1024 * 1024));
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new prefetcher.
+	 * 
+	 * @param display
+	 *            The display that runs the completion checks.
+	 * @param radius
+	 *            The number of albums warmed on each side of the visible area.
+	 * @param maxInFlight
+	 *            The maximal number of albums that are warmed at the same
+	 *            time.
+	 * @param maxBytes
+	 *            The maximal size of the warmed data, in bytes.
+	 */
+	public NeighborhoodPrefetcher(Display display, int radius,
+			int maxInFlight, long maxBytes) {
+		this.display = display;
+		this.radius = radius;
+		this.maxInFlight = maxInFlight;
+		this.maxBytes = maxBytes;
+		this.albums = Collections.emptyList();
+		this.neighbors = new HashMap<String, Neighbor>();
+		this.evicted = new HashSet<String>();
+	}
+
+	/**
+	 * Moves the window to the specified visible albums. Must be called on the
+	 * UI thread.
+	 * 
+	 * @param albums
+	 *            All the albums. The list is not copied and must not be
+	 *            changed other than by appending albums.
+	 * @param firstVisible
+	 *            The index of the first visible album.
+	 * @param lastVisible
+	 *            The index of the last visible album.
+	 */
+	public void setVisibleRange(List<Album> albums, int firstVisible,
+			int lastVisible) {
+		synchronized (this) {
+			if ((albums != this.albums) || (firstVisible != this.firstVisible)
+					|| (lastVisible != this.lastVisible)) {
+				// the evicted albums may fit in the budget of the new window
+				this.evicted.clear();
+			}
+			this.albums = albums;
+			this.firstVisible = firstVisible;
+			this.lastVisible = lastVisible;
+
+			for (Iterator<Neighbor> it = this.neighbors.values().iterator(); it
+					.hasNext();) {
+				Neighbor neighbor = it.next();
+				int distance = this.getDistance(neighbor.index);
+				if (distance > 2 * this.radius) {
+					// the user has moved far away
+					this.drop(neighbor);
+					it.remove();
+				} else {
+					neighbor.prefetch.priority.value = NEIGHBOR_PRIORITY
+							+ distance;
+				}
+			}
+		}
+		this.pump();
+	}
+
+	/**
+	 * Cancels the warming albums and drops the warmed ones. Must be called on
+	 * the UI thread.
+	 */
+	public synchronized void cancelAll() {
+		for (Neighbor neighbor : this.neighbors.values())
+			this.drop(neighbor);
+		this.neighbors.clear();
+		this.evicted.clear();
+		this.albums = Collections.emptyList();
+	}
+
+	/**
+	 * Hands the warmed data of the specified album over to the caller.
+	 * 
+	 * @param album
+	 *            Album.
+	 * @return The warming or warmed requests of the album, or
+	 *         <code>null</code> if the album has not been warmed.
+	 */
+	synchronized Prefetch claim(Album album) {
+		Neighbor neighbor = this.neighbors.remove(album.releaseID);
+		if (neighbor == null)
+			return null;
+		if (neighbor.bytes >= 0)
+			this.warmedBytes -= neighbor.bytes;
+		return neighbor.prefetch;
+	}
+
+	/**
+	 * Accounts the completed albums, evicts the farthest warmed albums above
+	 * the memory budget and starts warming the closest albums within the
+	 * bandwidth budget.
+	 */
+	private void pump() {
+		boolean isWarming;
+		synchronized (this) {
+			int inFlight = 0;
+			for (Iterator<Neighbor> it = this.neighbors.values().iterator(); it
+					.hasNext();) {
+				Neighbor neighbor = it.next();
+				if (neighbor.bytes >= 0)
+					continue;
+				if (!neighbor.prefetch.isDone()) {
+					inFlight++;
+					continue;
+				}
+				long size = getSize(neighbor.prefetch);
+				if (size < 0) {
+					// let the details window retry the failed requests
+					it.remove();
+					continue;
+				}
+				neighbor.bytes = size;
+				this.warmedBytes += size;
+			}
+			this.evictOverBudget();
+
+			if (this.warmedBytes < this.maxBytes) {
+				// the visible albums from the left, then the albums on both
+				// sides of the visible area from the closest
+				int first = Math.max(0, this.firstVisible - this.radius);
+				int last = Math.min(this.albums.size() - 1, this.lastVisible
+						+ this.radius);
+				for (int distance = 0; (inFlight < this.maxInFlight)
+						&& (distance <= this.radius); distance++) {
+					for (int index = first; (inFlight < this.maxInFlight)
+							&& (index <= last); index++) {
+						if (this.getDistance(index) != distance)
+							continue;
+						Album album = this.albums.get(index);
+						if (this.neighbors.containsKey(album.releaseID)
+								|| this.evicted.contains(album.releaseID))
+							continue;
+						this.neighbors.put(album.releaseID, new Neighbor(index,
+								new Prefetch(album, new PrefetchPriority(
+										NEIGHBOR_PRIORITY + distance))));
+						inFlight++;
+					}
+				}
+			}
+
+			isWarming = (inFlight > 0) && !this.isPollScheduled;
+			if (isWarming)
+				this.isPollScheduled = true;
+		}
+		if (isWarming)
+			this.display.timerExec(POLL_MILLIS, this.poller);
+	}
+
+	/**
+	 * Drops the farthest warmed albums until the warmed data fits in the
+	 * memory budget. The dropped albums are remembered, so that they are not
+	 * warmed again until the window moves.
+	 */
+	private void evictOverBudget() {
+		while (this.warmedBytes > this.maxBytes) {
+			Map.Entry<String, Neighbor> farthest = null;
+			for (Map.Entry<String, Neighbor> entry : this.neighbors.entrySet()) {
+				Neighbor neighbor = entry.getValue();
+				if (neighbor.bytes < 0)
+					continue;
+				if ((farthest == null)
+						|| (this.getDistance(neighbor.index) > this
+								.getDistance(farthest.getValue().index))) {
+					farthest = entry;
+				}
+			}
+			if (farthest == null)
+				return;
+			String releaseID = farthest.getKey();
+			Neighbor neighbor = this.neighbors.remove(releaseID);
+			this.evicted.add(releaseID);
+			this.drop(neighbor);
+		}
+	}
+
+	private void drop(Neighbor neighbor) {
+		if (neighbor.bytes >= 0)
+			this.warmedBytes -= neighbor.bytes;
+		else
+			neighbor.prefetch.cancel();
+	}
+
+	/**
+	 * Returns the distance of the specified album from the visible area.
+	 * 
+	 * @param index
+	 *            Album index.
+	 * @return The number of albums between the specified album and the
+	 *         visible area, or 0 if the album is visible.
+	 */
+	private int getDistance(int index) {
+		if (index < this.firstVisible)
+			return this.firstVisible - index;
+		if (index > this.lastVisible)
+			return index - this.lastVisible;
+		return 0;
+	}
+
+	/**
+	 * Returns the size of the completed requests of a single album.
+	 * 
+	 * @param prefetch
+	 *            Completed requests.
+	 * @return The size of the loaded data in bytes, or -1 if any of the
+	 *         requests has failed.
+	 */
+	private static long getSize(Prefetch prefetch) {
+		long size = 0;
+		try {
+			ImageData art = prefetch.getArt().get();
+			if ((art != null) && (art.data != null))
+				size += art.data.length;
+			List<Track> tracks = prefetch.getTracks().get();
+			if (tracks != null)
+				size += tracks.size() * TRACK_BYTES;
+		} catch (Exception exc) {
+			return -1;
+		}
+		return size;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Neighborhood prefetch: " + this.neighbors.size()
+				+ " albums, " + this.warmedBytes + " bytes warmed";
+	}
+}
@@ -36,12 +36,14 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.*;
 import org.eclipse.swt.graphics.*;
 import org.eclipse.swt.widgets.*;
+import org.pushingpixels.granite.FrameRepaintCallback;
 import org.pushingpixels.granite.GraniteUtils;
+import org.pushingpixels.granite.GraphicsResources;
+import org.pushingpixels.granite.ResourceTracker;
 import org.pushingpixels.granite.data.Album;
 import org.pushingpixels.granite.data.Track;
 import org.pushingpixels.trident.Timeline;
 import org.pushingpixels.trident.Timeline.RepeatBehavior;
-import org.pushingpixels.trident.swt.SWTRepaintCallback;
 
 /**
  * Component for showing track listing of a single album item from Amazon.
@@ -70,10 +72,35 @@ public class TrackListing extends Canvas {
 	private String released;
 
 	/**
-	 * List of the {@link #albumItem} discs.
+	 * List of the {@link #albumItem} discs, or <code>null</code> if the tracks
+	 * are still loading or could not be loaded.
 	 */
 	private List<Track> tracks;
 
+	/**
+	 * The vertical position of the first track.
+	 */
+	private int tracksTop;
+
+	/**
+	 * The alpha value of the tracks. Is animated when the tracks are set
+	 * after the album with {@link #setTracks(List)}.
+	 */
+	private int tracksAlpha;
+
+	/**
+	 * The text shown in place of the tracks while {@link #tracks} is
+	 * <code>null</code>.
+	 */
+	private String tracksPlaceholder;
+
+	/**
+	 * Fades in the tracks that are set after the album.
+	 */
+	private Timeline tracksFadeTimeline;
+
+	private Color background;
+
 	private Font keyFont;
 
 	private Font detailsFont;
@@ -82,6 +109,23 @@ public class TrackListing extends Canvas {
 
 	private int viewportTop;
 
+	/**
+	 * The height of a single pre-rendered tile.
+	 */
+	private static final int TILE_HEIGHT = 128;
+
+	/**
+	 * The pre-rendered tiles of the track listing, from top to bottom. Tiles
+	 * are rendered when they first intersect the viewport, and are disposed
+	 * when the album or the width changes.
+	 */
+	private List<Image> tiles;
+
+	/**
+	 * The width of the {@link #tiles}.
+	 */
+	private int tilesWidth;
+
 	/**
 	 * Information on a single disc.
 	 * 
@@ -108,6 +152,8 @@ public class TrackListing extends Canvas {
 	public TrackListing(Composite parent) {
 		super(parent, SWT.DOUBLE_BUFFERED);
 		this.viewportTop = 0;
+		this.tracksAlpha = 255;
+		this.tiles = new ArrayList<Image>();
 		// this.setBorder(new EmptyBorder(6, 6, 6, 6));
 
 		this.addPaintListener(new PaintListener() {
@@ -117,12 +163,30 @@ public class TrackListing extends Canvas {
 			}
 		});
 
-		this.setBackground(new Color(parent.getDisplay(), 32, 32, 32));
+		GraphicsResources resources = GraphicsResources.get(parent
+				.getDisplay());
+		this.background = resources.getColor(32, 32, 32);
+		this.setBackground(this.background);
 		FontData fontData = parent.getDisplay().getSystemFont().getFontData()[0];
-		this.keyFont = new Font(parent.getDisplay(), fontData.getName(),
-				fontData.getHeight() + 4, SWT.BOLD);
-		this.detailsFont = new Font(parent.getDisplay(), fontData.getName(),
-				fontData.getHeight() + 2, SWT.BOLD);
+		this.keyFont = resources.getFont(fontData.getName(), fontData
+				.getHeight() + 4, SWT.BOLD);
+		this.detailsFont = resources.getFont(fontData.getName(), fontData
+				.getHeight() + 2, SWT.BOLD);
+
+		// a dispose listener is also notified when this component is disposed
+		// along with its shell, unlike an overridden dispose()
+		this.addDisposeListener(new DisposeListener() {
+			@Override
+			public void widgetDisposed(DisposeEvent e) {
+				abortScrolling();
+				abortTracksFade();
+				disposeTiles();
+				GraphicsResources resources = GraphicsResources.get(e.display);
+				resources.release(background);
+				resources.release(keyFont);
+				resources.release(detailsFont);
+			}
+		});
 
 		this.addMouseListener(new MouseAdapter() {
 			@Override
@@ -163,13 +227,6 @@ public class TrackListing extends Canvas {
 		});
 	}
 
-	@Override
-	public void dispose() {
-		this.keyFont.dispose();
-		this.detailsFont.dispose();
-		super.dispose();
-	}
-
 	private void suspendScrolling() {
 		if (this.scrollerTimeline != null) {
 			Timeline.TimelineState state = this.scrollerTimeline.getState();
@@ -195,15 +252,28 @@ public class TrackListing extends Canvas {
 		}
 	}
 
+	private void abortTracksFade() {
+		if (this.tracksFadeTimeline != null) {
+			this.tracksFadeTimeline.abort();
+			this.tracksFadeTimeline = null;
+		}
+	}
+
 	/**
 	 * Sets the specified album item for the track display.
 	 * 
 	 * @param album
 	 *            Album item.
+	 * @param tracks
+	 *            Album tracks, or <code>null</code> if the tracks are still
+	 *            loading. In this case, a placeholder is shown until the
+	 *            tracks are set with {@link #setTracks(List)} or
+	 *            {@link #setTracksUnavailable()}.
 	 */
 	public void setAlbumItem(Album album, List<Track> tracks) {
 		this.abortScrolling();
 		this.scrollerTimeline = null;
+		this.abortTracksFade();
 
 		setViewportTop(0);
 
@@ -212,11 +282,64 @@ public class TrackListing extends Canvas {
 		this.albumTitle = "\"" + this.album.name + "\"";
 		this.released = "Released " + this.album.releaseDate;
 
+		this.tracks = (tracks == null) ? null : Collections
+				.unmodifiableList(tracks);
+		this.tracksPlaceholder = "Loading tracks...";
+		this.tracksAlpha = 255;
+
+		this.contentChanged();
+	}
+
+	/**
+	 * Replaces the placeholder of the tracks that were still loading when the
+	 * album item was set, and fades the tracks in.
+	 * 
+	 * @param tracks
+	 *            Album tracks.
+	 */
+	public void setTracks(List<Track> tracks) {
+		this.abortScrolling();
+		this.scrollerTimeline = null;
+		this.abortTracksFade();
+
+		setViewportTop(0);
+
 		this.tracks = Collections.unmodifiableList(tracks);
+		this.tracksAlpha = 0;
 
+		this.contentChanged();
+
+		this.tracksFadeTimeline = new Timeline(this);
+		this.tracksFadeTimeline.addPropertyToInterpolate("tracksAlpha", 0, 255);
+		this.tracksFadeTimeline.addCallback(new FrameRepaintCallback(this));
+		this.tracksFadeTimeline.setDuration(300);
+		this.tracksFadeTimeline.play();
+	}
+
+	/**
+	 * Replaces the placeholder of the tracks that were still loading when the
+	 * album item was set with a message that the tracks could not be loaded.
+	 */
+	public void setTracksUnavailable() {
+		this.abortTracksFade();
+
+		this.tracks = null;
+		this.tracksPlaceholder = "Tracks are not available";
+		this.tracksAlpha = 255;
+
+		this.contentChanged();
+	}
+
+	/**
+	 * Re-renders the track listing and recreates the scroller timeline.
+	 */
+	private void contentChanged() {
 		this.getDisplay().asyncExec(new Runnable() {
 			@Override
 			public void run() {
+				// the tiles of the previous album are no longer valid
+				disposeTiles();
+				redraw();
 				getParent().layout(new Control[] { TrackListing.this });
 
 				int requiredHeight = getRequiredHeight();
@@ -231,7 +354,7 @@ public class TrackListing extends Canvas {
 					// and set the cycle delay to pause the scrolling when it
 					// reaches one of the ends
 					scrollerTimeline.setCycleDelay(1000);
-					scrollerTimeline.addCallback(new SWTRepaintCallback(
+					scrollerTimeline.addCallback(new FrameRepaintCallback(
 							TrackListing.this));
 				}
 			}
@@ -268,10 +391,15 @@ public class TrackListing extends Canvas {
 			gc.setFont(this.detailsFont);
 			int detailsFontHeight = gc.getFontMetrics().getHeight();
 			height += detailsFontHeight / 2;
-			for (Track track : this.tracks) {
-				height += GraniteUtils.getMultilineTextHeight(this, gc,
-						track.title, width);
-				height += detailsFontHeight / 3;
+			this.tracksTop = height;
+			if (this.tracks == null) {
+				height += detailsFontHeight;
+			} else {
+				for (Track track : this.tracks) {
+					height += GraniteUtils.getMultilineTextHeight(this, gc,
+							track.title, width);
+					height += detailsFontHeight / 3;
+				}
 			}
 		}
 
@@ -280,15 +408,94 @@ public class TrackListing extends Canvas {
 	}
 
 	void paint(PaintEvent e) {
-		GC gc = e.gc;
-		gc.setAntialias(SWT.ON);
+		int w = getBounds().width;
+		int h = getBounds().height;
+		if (w != this.tilesWidth) {
+			this.disposeTiles();
+			this.tilesWidth = w;
+		}
+		if ((w <= 0) || (h <= 0))
+			return;
+
+		// only blit the tiles that intersect the viewport
+		int top = Math.max(0, this.viewportTop);
+		int firstTile = top / TILE_HEIGHT;
+		int lastTile = (top + h - 1) / TILE_HEIGHT;
+		for (int i = firstTile; i <= lastTile; i++) {
+			e.gc.drawImage(this.getTile(i, w), 0, i * TILE_HEIGHT
+					- this.viewportTop);
+		}
 
-		Transform currTransform = new Transform(e.display);
-		gc.getTransform(currTransform);
-		currTransform.translate(0, -this.viewportTop);
-		gc.setTransform(currTransform);
+		if (this.tracksAlpha < 255) {
+			// fade in the tracks that were set after the album by covering
+			// them with the background
+			e.gc.setAlpha(255 - this.tracksAlpha);
+			e.gc.setBackground(this.getBackground());
+			e.gc.fillRectangle(0, this.tracksTop - this.viewportTop, w, h);
+			e.gc.setAlpha(255);
+		}
+	}
+
+	/**
+	 * Returns the specified pre-rendered tile, rendering it if necessary.
+	 * 
+	 * @param index
+	 *            Tile index.
+	 * @param width
+	 *            Tile width.
+	 * @return The pre-rendered tile.
+	 */
+	private Image getTile(int index, int width) {
+		while (this.tiles.size() <= index) {
+			this.tiles.add(null);
+		}
+		Image tile = this.tiles.get(index);
+		if (tile == null) {
+			tile = ResourceTracker.track(new Image(this.getDisplay(), width,
+					TILE_HEIGHT));
+			GC gc = new GC(tile);
+			gc.setBackground(this.getBackground());
+			gc.fillRectangle(0, 0, width, TILE_HEIGHT);
+
+			int tileTop = index * TILE_HEIGHT;
+			Transform transform = new Transform(this.getDisplay());
+			transform.translate(0, -tileTop);
+			gc.setTransform(transform);
+			this.paintContent(gc, width, tileTop, tileTop + TILE_HEIGHT);
+			gc.setTransform(null);
+			transform.dispose();
+			gc.dispose();
+
+			this.tiles.set(index, tile);
+		}
+		return tile;
+	}
+
+	private void disposeTiles() {
+		for (Image tile : this.tiles) {
+			if (tile != null)
+				ResourceTracker.dispose(tile);
+		}
+		this.tiles.clear();
+	}
+
+	/**
+	 * Paints the track listing. The tracks that are entirely outside the
+	 * specified vertical range are skipped.
+	 * 
+	 * @param gc
+	 *            Graphics context.
+	 * @param w
+	 *            The width of the track listing.
+	 * @param clipTop
+	 *            The top of the vertical range to paint.
+	 * @param clipBottom
+	 *            The bottom of the vertical range to paint.
+	 */
+	private void paintContent(GC gc, int w, int clipTop, int clipBottom) {
+		Display display = this.getDisplay();
+		gc.setAntialias(SWT.ON);
 
-		int w = getBounds().width;
 		gc.setFont(this.keyFont);
 
 		int keyFontHeight = gc.getFontMetrics().getHeight();
@@ -311,7 +518,7 @@ public class TrackListing extends Canvas {
 					this.released, width);
 			height += keyFontHeight / 3;
 
-			gc.setBackground(e.display.getSystemColor(SWT.COLOR_BLACK));
+			gc.setBackground(display.getSystemColor(SWT.COLOR_BLACK));
 			gc.fillRectangle(-4, 0, w + 1, height - 2);
 		}
 
@@ -319,7 +526,7 @@ public class TrackListing extends Canvas {
 			int x = insets;
 
 			gc.setFont(this.keyFont);
-			gc.setForeground(e.display.getSystemColor(SWT.COLOR_WHITE));
+			gc.setForeground(display.getSystemColor(SWT.COLOR_WHITE));
 			int y = insets + gc.getFontMetrics().getAscent() / 2;
 
 			y = GraniteUtils.paintMultilineText(this, gc, this.artist, x,
@@ -336,10 +543,26 @@ public class TrackListing extends Canvas {
 			gc.setFont(this.detailsFont);
 			int detailsFontHeight = gc.getFontMetrics().getHeight();
 			y += detailsFontHeight / 2;
-			Color gray35 = new Color(e.display, 35, 35, 35);
-			Color gray44 = new Color(e.display, 44, 44, 44);
-			Color gray192 = new Color(e.display, 192, 192, 192);
-			for (Track track : this.tracks) {
+			GraphicsResources resources = GraphicsResources.get(display);
+			Color gray35 = resources.getColor(35, 35, 35);
+			Color gray44 = resources.getColor(44, 44, 44);
+			Color gray192 = resources.getColor(192, 192, 192);
+			if (this.tracks == null) {
+				gc.setForeground(gray192);
+				gc.drawString(this.tracksPlaceholder, x, y, true);
+			}
+			List<Track> shownTracks = (this.tracks == null) ? Collections
+					.<Track> emptyList() : this.tracks;
+			for (Track track : shownTracks) {
+				if (y >= clipBottom)
+					break;
+				int trackHeight = GraniteUtils.getMultilineTextHeight(this,
+						gc, track.title, width);
+				if (y + trackHeight + 2 <= clipTop) {
+					y += trackHeight + detailsFontHeight / 3;
+					continue;
+				}
+
 				gc.setForeground(gray44);
 				gc.drawLine(x + 5, y, width - 10, y);
 				gc.setForeground(gray35);
@@ -350,15 +573,23 @@ public class TrackListing extends Canvas {
 						width, y, -1);
 				y += detailsFontHeight / 3;
 			}
-			gray35.dispose();
-			gray44.dispose();
-			gray192.dispose();
+			resources.release(gray35);
+			resources.release(gray44);
+			resources.release(gray192);
 		}
-
-		currTransform.dispose();
 	}
 
 	public void setViewportTop(int viewportTop) {
 		this.viewportTop = viewportTop;
 	}
+
+	/**
+	 * Sets the new alpha value for the tracks.
+	 * 
+	 * @param tracksAlpha
+	 *            The new alpha value for the tracks.
+	 */
+	public void setTracksAlpha(int tracksAlpha) {
+		this.tracksAlpha = tracksAlpha;
+	}
 }